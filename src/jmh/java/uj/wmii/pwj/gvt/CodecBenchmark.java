@@ -0,0 +1,57 @@
+package uj.wmii.pwj.gvt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({"none", "deflate-fast", "deflate", "deflate-best"})
+    public String codecName;
+
+    @Param({"1048576"})
+    public int size;
+
+    private Codec codec;
+    private byte[] content;
+    private byte[] compressed;
+
+    @Setup
+    public void prepare() throws IOException {
+        codec = Codecs.forName(codecName);
+        StringBuilder text = new StringBuilder(size);
+        for (int line = 0; text.length() < size; line++) {
+            text.append(line).append(";uj.wmii.pwj.gvt;").append(line * 7919 % 1000).append(";record\n");
+        }
+        content = text.substring(0, size).getBytes(StandardCharsets.UTF_8);
+        compressed = compress();
+    }
+
+    @Benchmark
+    public byte[] compress() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(content.length);
+        try (OutputStream out = codec.compress(buffer)) {
+            out.write(content);
+        }
+        return buffer.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(compressed))) {
+            return in.readAllBytes();
+        }
+    }
+}
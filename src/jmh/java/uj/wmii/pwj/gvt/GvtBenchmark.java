@@ -0,0 +1,243 @@
+package uj.wmii.pwj.gvt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GvtBenchmark {
+
+    static class SilentExitHandler extends ExitHandler {
+        int lastCode;
+
+        @Override
+        void exitOperation(int code) {
+            lastCode = code;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PopulatedRepository {
+
+        @Param({"10", "10000"})
+        public int versions;
+
+        @Param({"10", "1000"})
+        public int files;
+
+        @Param({"1024", "65536"})
+        public int fileSize;
+
+        final SilentExitHandler exitHandler = new SilentExitHandler();
+        Gvt gvt;
+        Random random;
+        int latest;
+        int extraFiles;
+        boolean toggle;
+        private PrintStream stdout;
+        private PrintStream stderr;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            silence();
+            deleteAll();
+            random = new Random(files * 31L + fileSize);
+            gvt = new Gvt(exitHandler);
+            gvt.mainInternal("init");
+
+            SafeFiles.setFsyncEnabled(false);
+            StringBuilder ops = new StringBuilder();
+            for (int i = 0; i < files; i++) {
+                writeRandom(trackedFile(i), fileSize);
+                ops.append("add ").append(trackedFile(i)).append('\n');
+            }
+            runBatch(ops.toString(), true);
+            ops.setLength(0);
+            Path churn = Path.of("bench-churn.dat");
+            writeRandom(churn, fileSize);
+            for (int v = 2; v < versions; v++) {
+                ops.append(v % 2 == 0 ? "add " : "detach ").append(churn).append('\n');
+            }
+            runBatch(ops.toString(), false);
+            SafeFiles.setFsyncEnabled(true);
+            latest = Math.max(1, versions - 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            deleteAll();
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+
+        void writeRandom(Path file, int size) throws IOException {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            Files.write(file, content);
+        }
+
+        private void runBatch(String ops, boolean combined) throws IOException {
+            if (ops.isEmpty()) {
+                return;
+            }
+            Path opsFile = Path.of(".gvt", "benchmark-ops.txt");
+            Files.writeString(opsFile, ops);
+            if (combined) {
+                gvt.mainInternal("batch", "-combined", opsFile.toString());
+            } else {
+                gvt.mainInternal("batch", opsFile.toString());
+            }
+            Files.delete(opsFile);
+        }
+
+        private void silence() {
+            stdout = System.out;
+            stderr = System.err;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MutableRepository extends PopulatedRepository {
+
+        private static Path pristine = Path.of("bench-pristine");
+
+        private int pristineLatest;
+
+        private void snapshot() throws IOException {
+            pristineLatest = latest;
+            copyTree(Path.of(".gvt"), pristine.resolve(".gvt"));
+            for (int i = 0; i < files; i++) {
+                copyTree(trackedFile(i), pristine.resolve(trackedFile(i)));
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() throws IOException {
+            if (!Files.isDirectory(pristine)) {
+                snapshot();
+            }
+            SafeFiles.deleteRecursively(Path.of(".gvt"));
+            try (DirectoryStream<Path> extra = Files.newDirectoryStream(Path.of("."), "bench-extra-*")) {
+                for (Path file : extra) {
+                    Files.delete(file);
+                }
+            }
+            copyTree(pristine, Path.of("."));
+            gvt = new Gvt(exitHandler);
+            latest = pristineLatest;
+            extraFiles = 0;
+        }
+
+        private static void copyTree(Path from, Path to) throws IOException {
+            try (Stream<Path> paths = Files.walk(from)) {
+                for (Path source : (Iterable<Path>) paths::iterator) {
+                    Path target = to.resolve(from.relativize(source).toString());
+                    if (Files.isDirectory(source)) {
+                        Files.createDirectories(target);
+                    } else {
+                        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                }
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmptyDirectory {
+
+        final Gvt gvt = new Gvt(new SilentExitHandler());
+
+        @Setup(Level.Invocation)
+        public void clean() throws IOException {
+            deleteAll();
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            deleteAll();
+        }
+    }
+
+    @Benchmark
+    public void init(EmptyDirectory state) {
+        state.gvt.mainInternal("init");
+    }
+
+    @Benchmark
+    public void add(MutableRepository repo) throws IOException {
+        Path file = Path.of("bench-extra-" + repo.extraFiles++ + ".dat");
+        repo.writeRandom(file, repo.fileSize);
+        repo.gvt.mainInternal("add", file.toString());
+        repo.latest++;
+    }
+
+    @Benchmark
+    public void commit(MutableRepository repo) throws IOException {
+        Path file = trackedFile(repo.random.nextInt(repo.files));
+        repo.writeRandom(file, repo.fileSize);
+        repo.gvt.mainInternal("commit", file.toString());
+        repo.latest++;
+    }
+
+    @Benchmark
+    public void detachAndAddBack(MutableRepository repo) {
+        String file = trackedFile(0).toString();
+        repo.gvt.mainInternal("detach", file);
+        repo.gvt.mainInternal("add", file);
+        repo.latest += 2;
+    }
+
+    @Benchmark
+    public void checkout(PopulatedRepository repo) {
+        repo.toggle = !repo.toggle;
+        repo.gvt.mainInternal("checkout", String.valueOf(repo.toggle ? 1 : repo.latest));
+    }
+
+    @Benchmark
+    public void history(PopulatedRepository repo) {
+        repo.gvt.mainInternal("history");
+    }
+
+    @Benchmark
+    public void historyLast10(PopulatedRepository repo) {
+        repo.gvt.mainInternal("history", "-last", "10");
+    }
+
+    @Benchmark
+    public void historyGrep(PopulatedRepository repo) {
+        repo.gvt.mainInternal("history", "-grep", "detached", "-limit", "10");
+    }
+
+    @Benchmark
+    public void version(PopulatedRepository repo) {
+        repo.gvt.mainInternal("version", String.valueOf(repo.latest / 2));
+    }
+
+    static Path trackedFile(int index) {
+        return Path.of("bench-" + index + ".dat");
+    }
+
+    static void deleteAll() throws IOException {
+        SafeFiles.deleteRecursively(Path.of(".gvt"));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Path.of("."), "bench-*")) {
+            for (Path file : files) {
+                SafeFiles.deleteRecursively(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+class Chunker {
+
+    interface Sink {
+        void chunk(byte[] data, int length) throws IOException;
+    }
+
+    private static int minSize = 16 * 1024;
+    private static int averageSize = 64 * 1024;
+    private static int maxSize = 256 * 1024;
+    private static long strictMask = mask(18);
+    private static long looseMask = mask(14);
+    private static long[] gear = gearTable(0x677674L);
+
+    private Chunker() {
+    }
+
+    static void split(InputStream in, Sink sink) throws IOException {
+        byte[] buffer = new byte[maxSize];
+        int filled = 0;
+        boolean eof = false;
+        while (true) {
+            while (!eof && filled < buffer.length) {
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read == -1) {
+                    eof = true;
+                } else {
+                    filled += read;
+                }
+            }
+            if (filled == 0) {
+                return;
+            }
+            int cut = boundary(buffer, filled);
+            sink.chunk(buffer, cut);
+            System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+            filled -= cut;
+        }
+    }
+
+    static int boundary(byte[] data, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int normal = Math.min(averageSize, length);
+        int limit = Math.min(maxSize, length);
+        long fingerprint = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + gear[data[i] & 0xFF];
+            if ((fingerprint & strictMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + gear[data[i] & 0xFF];
+            if ((fingerprint & looseMask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    private static long mask(int bits) {
+        return ((1L << bits) - 1) << (64 - bits);
+    }
+
+    private static long[] gearTable(long seed) {
+        Random random = new Random(seed);
+        long[] table = new long[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextLong();
+        }
+        return table;
+    }
+}
@@ -0,0 +1,14 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+interface Codec {
+
+    String name();
+
+    OutputStream compress(OutputStream out) throws IOException;
+
+    InputStream decompress(InputStream in) throws IOException;
+}
@@ -0,0 +1,111 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+class Codecs {
+
+    static String NONE = "none";
+    static String DEFAULT = "deflate";
+
+    private static int bufferSize = 64 * 1024;
+    private static Map<String, Codec> codecs = new LinkedHashMap<>();
+
+    static {
+        register(new Identity());
+        register(new DeflateCodec(DEFAULT, Deflater.DEFAULT_COMPRESSION));
+        register(new DeflateCodec("deflate-fast", Deflater.BEST_SPEED));
+        register(new DeflateCodec("deflate-best", Deflater.BEST_COMPRESSION));
+    }
+
+    private Codecs() {
+    }
+
+    static synchronized void register(Codec codec) {
+        codecs.put(codec.name(), codec);
+    }
+
+    static synchronized Codec forName(String name) throws IOException {
+        Codec codec = codecs.get(name);
+        if (codec == null) {
+            throw new IOException("Unknown compression codec " + name);
+        }
+        return codec;
+    }
+
+    static synchronized Set<String> names() {
+        return Set.copyOf(codecs.keySet());
+    }
+
+    private static class Identity implements Codec {
+
+        @Override
+        public String name() {
+            return NONE;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            return in;
+        }
+    }
+
+    private static class DeflateCodec implements Codec {
+
+        private final String name;
+        private final int level;
+
+        DeflateCodec(String name, int level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out) {
+            Deflater deflater = new Deflater(level);
+            return new DeflaterOutputStream(out, deflater, bufferSize) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, bufferSize) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    }
+}
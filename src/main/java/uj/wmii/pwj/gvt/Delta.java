@@ -0,0 +1,115 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class Delta {
+
+    private static int blockSize = 64;
+    private static int copyOp = 0;
+    private static int insertOp = 1;
+    private static int endOp = 2;
+
+    private Delta() {
+    }
+
+    static byte[] encode(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(encoded);
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int offset = 0; offset + blockSize <= base.length; offset += blockSize) {
+            blocks.putIfAbsent(checksum(base, offset), offset);
+        }
+
+        int literalStart = 0;
+        int i = 0;
+        int sum = target.length >= blockSize ? checksum(target, 0) : 0;
+        while (i + blockSize <= target.length) {
+            Integer offset = blocks.get(sum);
+            if (offset != null && Arrays.equals(base, offset, offset + blockSize, target, i, i + blockSize)) {
+                int length = blockSize;
+                while (i + length < target.length && offset + length < base.length
+                        && base[offset + length] == target[i + length]) {
+                    length++;
+                }
+                int back = 0;
+                while (i - back > literalStart && offset - back > 0
+                        && base[offset - back - 1] == target[i - back - 1]) {
+                    back++;
+                }
+                writeInsert(out, target, literalStart, i - back);
+                out.writeByte(copyOp);
+                out.writeInt(offset - back);
+                out.writeInt(length + back);
+                i += length;
+                literalStart = i;
+                if (i + blockSize <= target.length) {
+                    sum = checksum(target, i);
+                }
+            } else {
+                if (i + blockSize < target.length) {
+                    sum = roll(sum, target[i], target[i + blockSize]);
+                }
+                i++;
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        out.writeByte(endOp);
+        out.flush();
+        return encoded.toByteArray();
+    }
+
+    static byte[] apply(byte[] base, DataInputStream in, long targetSize) throws IOException {
+        byte[] target = new byte[Math.toIntExact(targetSize)];
+        int position = 0;
+        int op;
+        while ((op = in.readUnsignedByte()) != endOp) {
+            if (op == copyOp) {
+                int offset = in.readInt();
+                int length = in.readInt();
+                System.arraycopy(base, offset, target, position, length);
+                position += length;
+            } else if (op == insertOp) {
+                int length = in.readInt();
+                in.readFully(target, position, length);
+                position += length;
+            } else {
+                throw new IOException("Corrupted delta, unknown operation " + op);
+            }
+        }
+        if (position != target.length) {
+            throw new IOException("Corrupted delta, expected " + target.length + " bytes but got " + position);
+        }
+        return target;
+    }
+
+    private static void writeInsert(DataOutputStream out, byte[] data, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        out.writeByte(insertOp);
+        out.writeInt(to - from);
+        out.write(data, from, to - from);
+    }
+
+    private static int checksum(byte[] data, int offset) {
+        int a = 0;
+        int b = 0;
+        for (int j = 0; j < blockSize; j++) {
+            int value = data[offset + j] & 0xFF;
+            a += value;
+            b += (blockSize - j) * value;
+        }
+        return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+    }
+
+    private static int roll(int sum, byte removed, byte added) {
+        int out = removed & 0xFF;
+        int in = added & 0xFF;
+        int a = ((sum & 0xFFFF) - out + in) & 0xFFFF;
+        int b = ((sum >>> 16) - blockSize * out + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+}
@@ -0,0 +1,142 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+class FileCopier {
+
+    enum Strategy {
+        REFLINK, HARDLINK, TRANSFER, STREAM
+    }
+
+    private static long reflinkThreshold = 1024 * 1024;
+    private static int bufferSize = 64 * 1024;
+    private static volatile Boolean reflinkSupported = reflinkAllowed() ? null : Boolean.FALSE;
+
+    private final Map<Strategy, AtomicLong> counters = new EnumMap<>(Strategy.class);
+
+    FileCopier() {
+        for (Strategy strategy : Strategy.values()) {
+            counters.put(strategy, new AtomicLong());
+        }
+    }
+
+    Strategy copy(Path source, Path target, boolean immutable) throws IOException {
+        Strategy used = copyWithBestStrategy(source, target, immutable);
+        counters.get(used).incrementAndGet();
+        return used;
+    }
+
+    boolean canShareBlocks(Path source, boolean immutable) throws IOException {
+        return immutable || (!Boolean.FALSE.equals(reflinkSupported) && Files.size(source) >= reflinkThreshold);
+    }
+
+    long count(Strategy strategy) {
+        return counters.get(strategy).get();
+    }
+
+    long total() {
+        long total = 0;
+        for (AtomicLong counter : counters.values()) {
+            total += counter.get();
+        }
+        return total;
+    }
+
+    void resetStats() {
+        for (AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+    }
+
+    String describe() {
+        StringJoiner joiner = new StringJoiner(", ");
+        for (Strategy strategy : Strategy.values()) {
+            joiner.add(strategy.name().toLowerCase() + " " + count(strategy));
+        }
+        return joiner.toString();
+    }
+
+    private Strategy copyWithBestStrategy(Path source, Path target, boolean immutable) throws IOException {
+        if (immutable && tryHardLink(source, target)) {
+            return Strategy.HARDLINK;
+        }
+        if (canShareBlocks(source, false) && tryReflink(source, target)) {
+            return Strategy.REFLINK;
+        }
+        try {
+            transfer(source, target);
+            return Strategy.TRANSFER;
+        } catch (IOException e) {
+            stream(source, target);
+            return Strategy.STREAM;
+        }
+    }
+
+    private static boolean tryHardLink(Path source, Path target) {
+        try {
+            Files.deleteIfExists(target);
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static boolean tryReflink(Path source, Path target) {
+        try {
+            Process process = new ProcessBuilder("cp", "--reflink=always", source.toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (process.waitFor(30, TimeUnit.SECONDS) && process.exitValue() == 0) {
+                reflinkSupported = Boolean.TRUE;
+                return true;
+            }
+            process.destroy();
+        } catch (IOException e) {
+            // cp is not available, fall through and stop trying
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (reflinkSupported == null) {
+            reflinkSupported = Boolean.FALSE;
+        }
+        return false;
+    }
+
+    private static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    throw new IOException("transferTo made no progress for " + source);
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static void stream(Path source, Path target) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source), bufferSize);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(target), bufferSize)) {
+            in.transferTo(out);
+        }
+    }
+
+    private static boolean reflinkAllowed() {
+        return !"false".equals(System.getProperty("gvt.reflink"))
+                && System.getProperty("os.name", "").toLowerCase().contains("linux");
+    }
+}
@@ -0,0 +1,104 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+class FileIndex {
+
+    private static String headFile = "head";
+    private static int fanOut = 2;
+
+    private final Path directory;
+    private final Path headPath;
+
+    FileIndex(Path directory) {
+        this.directory = directory;
+        this.headPath = directory.resolve(headFile);
+    }
+
+    int head() throws IOException {
+        if (!Files.exists(headPath)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(Files.readString(headPath).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    void append(Map<String, List<Integer>> changes, int head) throws IOException {
+        Files.createDirectories(directory);
+        for (Map.Entry<String, List<Integer>> change : changes.entrySet()) {
+            append(pathOf(change.getKey()), change.getValue());
+        }
+        SafeFiles.writeAtomically(headPath, String.valueOf(head));
+    }
+
+    int[] versions(String fileName, int latestVersion) throws IOException {
+        Path path = pathOf(fileName);
+        if (!Files.exists(path)) {
+            return new int[0];
+        }
+        int limit = Math.min(head(), latestVersion);
+        IntBuffer entries = ByteBuffer.wrap(Files.readAllBytes(path)).asIntBuffer();
+        int[] versions = new int[entries.remaining()];
+        int count = 0;
+        while (entries.hasRemaining()) {
+            int version = entries.get();
+            if (version > limit) {
+                break;
+            }
+            versions[count++] = version;
+        }
+        return Arrays.copyOf(versions, count);
+    }
+
+    void clear() throws IOException {
+        SafeFiles.deleteRecursively(directory);
+    }
+
+    private static void append(Path path, List<Integer> versions) throws IOException {
+        Files.createDirectories(path.getParent());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long end = channel.size() / Integer.BYTES * Integer.BYTES;
+            while (end > 0 && readInt(channel, end - Integer.BYTES) >= versions.get(0)) {
+                end -= Integer.BYTES;
+            }
+            channel.truncate(end);
+            ByteBuffer buffer = ByteBuffer.allocate(versions.size() * Integer.BYTES);
+            for (int version : versions) {
+                buffer.putInt(version);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                end += channel.write(buffer, end);
+            }
+            SafeFiles.sync(channel);
+        }
+    }
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated file index entry at " + position);
+            }
+        }
+        return buffer.getInt(0);
+    }
+
+    private Path pathOf(String fileName) {
+        String hash = ObjectStore.hash(fileName.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(hash.substring(0, fanOut)).resolve(hash.substring(fanOut));
+    }
+}
@@ -1,9 +1,18 @@
 package uj.wmii.pwj.gvt;
 
-import java.io.File;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
 
 public class Gvt {
 
@@ -14,24 +23,43 @@ public class Gvt {
     }
 
     private static String gvt_dir = ".gvt";
-    private static String VersionDir = "versions";
-    private static String LatestFile = "latest";
-    private static String ActiveFile = "active";
-    private static String messageFile = ".message";
+    private static String DaemonSocketFile = "daemon.sock";
+    private static int outputBufferSize = 64 * 1024;
+    private static String statsOption = "--stats";
 
-    private Path gvtPath = Paths.get(gvt_dir);
-    private Path versionsPath = gvtPath.resolve(VersionDir);
-    private Path latestPath = gvtPath.resolve(LatestFile);
-    private Path activePath = gvtPath.resolve(ActiveFile);
+    private Path root = Paths.get("");
+    private Repository repository;
+    private String command;
+    private boolean printStats;
+    private Metrics metrics;
 
     public static void main(String... args) {
-        Gvt gvt = new Gvt(new ExitHandler());
+        ExitHandler exitHandler = new ExitHandler();
+        if (GvtDaemon.forward(Paths.get(gvt_dir, DaemonSocketFile), exitHandler, args)) {
+            return;
+        }
+        Gvt gvt = new Gvt(exitHandler);
         gvt.mainInternal(args);
     }
 
     public void mainInternal(String... args) {
+        printStats = args.length > 0 && args[0].equals(statsOption);
+        if (printStats) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        command = args.length > 0 ? args[0] : "";
+        metrics = new Metrics(printStats);
+        Metrics previous = Metrics.bind(metrics);
+        try {
+            execute(args);
+        } finally {
+            Metrics.bind(previous);
+        }
+    }
+
+    private void execute(String... args) {
         if (args.length == 0) {
-            exitHandler.exit(1, "Please specify command.");
+            exit(1, "Please specify command.");
             return;
         }
         if (args[0].equals("init")) {
@@ -42,11 +70,26 @@ public class Gvt {
             }
             return;
         }
-        if (!Files.isDirectory(gvtPath)) {
-            exitHandler.exit(-2, "Current directory is not initialized. Please use init command to initialize.");
+        if (!Repository.isInitialized(root)) {
+            repository = null;
+            exit(-2, "Current directory is not initialized. Please use init command to initialize.");
+            return;
+        }
+        if (args[0].equals("daemon")) {
+            try {
+                executeDaemon(args);
+            } catch (IOException e) {
+                systemError(e);
+            }
             return;
         }
         try {
+            if (repository == null) {
+                repository = Repository.open(root);
+            }
+            if (repository.metricsEnabled()) {
+                metrics.enable();
+            }
             switch (args[0]) {
                 case "add":
                     executeAdd(args);
@@ -60,15 +103,43 @@ public class Gvt {
                 case "checkout":
                     executeCheckout(args);
                     break;
+                case "status":
+                    executeStatus(args);
+                    break;
                 case "history":
                     executeHistory(args);
                     break;
+                case "log":
+                    executeLog(args);
+                    break;
                 case "version":
                     executeVersion(args);
                     break;
+                case "diff":
+                    executeDiff(args);
+                    break;
+                case "stats":
+                    executeStats(args);
+                    break;
+                case "gc":
+                case "pack":
+                    report(repository.gc());
+                    break;
+                case "rebuild":
+                    report(repository.rebuild());
+                    break;
+                case "fsck":
+                    report(repository.fsck());
+                    break;
+                case "batch":
+                    executeBatch(args);
+                    break;
                 default:
-                    exitHandler.exit(1, "Unknown command " + args[0] + ".");
+                    exit(1, "Unknown command " + args[0] + ".");
             }
+        } catch (RepositoryLock.TimeoutException e) {
+            e.printStackTrace(System.err);
+            exit(-4, "Repository is locked by another process. Please try again later.");
         } catch (IOException e) {
             systemError(e);
         }
@@ -76,288 +147,285 @@ public class Gvt {
 
     private void executeAdd(String[] args) throws IOException {
         if (args.length < 2) {
-            exitHandler.exit(20, "Please specify file to add.");
+            exit(20, "Please specify file to add.");
             return;
         }
-        Path fileToAdd = Paths.get(args[1]);
-        Path lastVersionPath = versionsPath.resolve(String.valueOf(getLatestVersionNum()));
-        Path targetGvt = lastVersionPath.resolve(args[1]);
-        if (Files.exists(targetGvt)) {
-            exitHandler.exit(0, "File already added. File: " + args[1]);
-            return;
-        }
-        if (!Files.isRegularFile(fileToAdd)) {
-            exitHandler.exit(21, "File not found. File: " + args[1]);
-            return;
-        }
-
-        String defaultMessage = "File added successfully. File: " + args[1];
-        String message;
-        if (args.length == 4 && args[2].equals("-m")) {
-            message = args[3];
-        } else {
-            message = defaultMessage;
-        }
-
-        try {
-            int prevLatest = getLatestVersionNum();
-            int newVersionNumber = createNewVersion(prevLatest, message);
-            Path newVersionPath = versionsPath.resolve(String.valueOf(newVersionNumber));
-            Path newFileDest = newVersionPath.resolve(args[1]);
-            copyFile(fileToAdd, newFileDest);
-            exitHandler.exit(0, "File added successfully. File: " + args[1]);
-        } catch (IOException e) {
-            e.printStackTrace(System.err);
-            exitHandler.exit(22, "File cannot be added. See ERR for details. File: " + args[1]);
-        }
+        report(repository.add(args[1], messageOption(args)));
     }
 
     private void executeCommit(String[] args) throws IOException {
         if (args.length < 2) {
-            exitHandler.exit(50, "Please specify file to commit.");
+            exit(50, "Please specify file to commit.");
             return;
         }
-        if (!Files.isRegularFile(Paths.get(args[1]))) {
-            exitHandler.exit(51, "File not found. File: " + args[1]);
+        if (args[1].equals("-a")) {
+            report(repository.commitAll(messageOption(args)));
             return;
         }
-        int latestVersionNum = getLatestVersionNum();
-        Path latestVersionPath = versionsPath.resolve(String.valueOf(latestVersionNum));
-        Path fileInGvt = latestVersionPath.resolve(args[1]);
+        report(repository.commit(args[1], messageOption(args)));
+    }
 
-        if (!Files.exists(fileInGvt)) {
-            exitHandler.exit(0, "File is not added to gvt. File: " + args[1]);
+    private void executeDetach(String[] args) throws IOException {
+        if (args.length < 2) {
+            exit(30, "Please specify file to detach.");
             return;
         }
-        String defaultMessage = "File committed successfully. File: " + args[1];
-        String message;
-        if (args.length == 4 && args[2].equals("-m")) {
-            message = args[3];
-        } else {
-            message = defaultMessage;
-        }
+        report(repository.detach(args[1], messageOption(args)));
+    }
 
-        try {
-            int newVersionNum = createNewVersion(latestVersionNum, message);
-            Path newVersionPath = versionsPath.resolve(String.valueOf(newVersionNum));
-            Path newFileDest = newVersionPath.resolve(args[1]);
-            copyFile(Paths.get(args[1]), newFileDest);
-            exitHandler.exit(0, "File committed successfully. File: " + args[1]);
-        } catch (IOException e) {
-            e.printStackTrace(System.err);
-            exitHandler.exit(52, "File cannot be committed, see ERR for details. File: " + args[1]);
+    private static String messageOption(String[] args) {
+        if (args.length == 4 && args[2].equals("-m")) {
+            return args[3];
         }
+        return null;
     }
 
-    private void executeDetach(String[] args) throws IOException {
-        if (args.length < 2) {
-            exitHandler.exit(30, "Please specify file to detach.");
-            return;
+    private void report(Repository.Result result) {
+        if (result.error() != null) {
+            result.error().printStackTrace(System.err);
         }
-        int latestVersionNum = getLatestVersionNum();
-        Path latestVersionPath = versionsPath.resolve(String.valueOf(latestVersionNum));
-        Path fileToDetach = latestVersionPath.resolve(args[1]);
-        if (!Files.exists(fileToDetach)) {
-            exitHandler.exit(0, "File is not added to gvt. File: " + args[1]);
-            return;
+        if (result.bytesSaved() > 0) {
+            System.err.println("Stored as delta, " + result.bytesSaved() + " bytes saved.");
         }
-
-        String defaultMessage = "File detached successfully. File: " + args[1];
-        String message;
-        if (args.length == 4 && args[2].equals("-m")) {
-            message = args[3];
-        } else {
-            message = defaultMessage;
+        if (result.bytesReused() > 0) {
+            System.err.println("Reused existing chunks, " + result.bytesReused() + " bytes saved.");
         }
+        exit(result.code(), result.message());
+    }
 
-        try {
-            int newVersionNum = createNewVersion(latestVersionNum, message);
-            Path newVersionPath = versionsPath.resolve(String.valueOf(newVersionNum));
-            Path fileInNewVersion = newVersionPath.resolve(args[1]);
-            Files.deleteIfExists(fileInNewVersion);
-            exitHandler.exit(0, "File detached successfully. File: " + args[1]);
-        } catch (IOException e) {
-            e.printStackTrace(System.err);
-            exitHandler.exit(31, "File cannot be detached, see ERR for details. File: " + args[1]);
+    private void executeBatch(String[] args) throws IOException {
+        boolean combined = false;
+        String combinedMessage = null;
+        Path opsFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-combined")) {
+                combined = true;
+            } else if (args[i].equals("-m") && i + 1 < args.length) {
+                combinedMessage = args[++i];
+            } else {
+                opsFile = Paths.get(args[i]);
+            }
+        }
+        List<String> lines;
+        if (opsFile != null) {
+            lines = Files.readAllLines(opsFile, StandardCharsets.UTF_8);
+        } else {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            lines = reader.lines().collect(Collectors.toList());
         }
+        report(repository.batch(lines, combined, combinedMessage));
     }
 
     private void executeCheckout(String[] args) throws IOException {
         if (args.length < 2) {
-            exitHandler.exit(60, "Invalid version number: ");
+            exit(60, "Invalid version number: ");
             return;
         }
         int versionNum;
         try {
             versionNum = Integer.parseInt(args[1]);
         } catch (NumberFormatException e) {
-            exitHandler.exit(60, "Invalid version number: " + args[1]);
+            exit(60, "Invalid version number: " + args[1]);
             return;
         }
 
-        Path versionPath = versionsPath.resolve(String.valueOf(versionNum));
-        if (!Files.isDirectory(versionPath)) {
-            exitHandler.exit(60, "Invalid version number: " + args[1]);
+        Repository.CheckoutResult result = repository.checkout(versionNum);
+        if (!result.succeeded()) {
+            exit(result.code(), "Invalid version number: " + args[1]);
             return;
         }
-
-        Set<String> targetFiles = getFiles(versionNum);
-        Set<String> currentFiles = getFiles(Integer.parseInt(Files.readString(activePath).trim()));
-        for (String fileName : targetFiles) {
-            Path source = versionPath.resolve(fileName);
-            Path dest = Paths.get(fileName);
-            copyFile(source, dest);
+        System.err.println("Checkout summary: " + result.written() + " written, " + result.skipped() + " skipped, "
+                + result.deleted() + " deleted.");
+        if (result.copyStrategies() != null) {
+            System.err.println("Copy strategies: " + result.copyStrategies() + ".");
         }
-        for (String fileName : currentFiles) {
-            if (!targetFiles.contains(fileName)) {
-                Files.deleteIfExists(Paths.get(fileName));
-            }
+        if (result.deltasApplied() > 0) {
+            System.err.println("Reconstructed " + result.deltasApplied() + " file(s) from deltas in "
+                    + result.reconstructionMillis() + " ms.");
         }
-        Files.writeString(activePath, String.valueOf(versionNum));
 
-        exitHandler.exit(0, "Checkout successful for version: " + versionNum);
+        exit(0, result.message());
+    }
+
+    private void executeStatus(String[] args) throws IOException {
+        Repository.Status status = repository.status();
+        StringBuilder output = new StringBuilder("Version: " + status.version());
+        for (Map.Entry<String, Repository.FileState> change : status.changes().entrySet()) {
+            output.append("\n").append(change.getValue().name().toLowerCase(Locale.ROOT)).append(": ").append(change.getKey());
+        }
+        if (status.changes().isEmpty()) {
+            output.append("\nNo changes.");
+        }
+        exit(0, output.toString());
     }
 
     private void executeHistory(String[] args) throws IOException {
+        StringBuilder output = new StringBuilder();
+        repository.history(historyQuery(args, 1), version -> buffer(output, historyLine(version)));
+        exit(0, output.toString());
+    }
+
+    private void executeLog(String[] args) throws IOException {
+        if (args.length < 2) {
+            exit(70, "Please specify file to log.");
+            return;
+        }
+        StringBuilder output = new StringBuilder();
+        repository.log(args[1], historyQuery(args, 2), version -> buffer(output, historyLine(version)));
+        exit(0, output.toString());
+    }
+
+    private static String historyLine(Repository.Version version) {
+        return version.number() + ": " + version.message().split("\\R", 2)[0];
+    }
+
+    private static boolean buffer(StringBuilder output, String line) {
+        output.append(line).append("\n");
+        if (output.length() >= outputBufferSize) {
+            System.out.print(output);
+            output.setLength(0);
+            return !System.out.checkError();
+        }
+        return true;
+    }
+
+    private static Repository.HistoryQuery historyQuery(String[] args, int first) {
+        int from = Integer.MAX_VALUE;
+        int limit = Integer.MAX_VALUE;
+        long before = Long.MAX_VALUE;
+        String grep = null;
         try {
-            int latestVersionNum = getLatestVersionNum();
-            int first = 0;
-            if (args.length == 3 && args[1].equals("-last")) {
-                int n;
-                try {
-                    n = Integer.parseInt(args[2]);
-                } catch (NumberFormatException e) {
-                    n = latestVersionNum + 1;
+            for (int i = first; i < args.length; i += 2) {
+                if (i + 1 == args.length) {
+                    return new Repository.HistoryQuery();
                 }
-                first = Math.max(0, latestVersionNum - n + 1);
-            }
-            StringBuilder output = new StringBuilder();
-            boolean firstLineAppended = false;
-            for (int i = latestVersionNum; i >= first; i--) {
-                Path msgPath = versionsPath.resolve(String.valueOf(i)).resolve(messageFile);
-                String message = Files.readString(msgPath);
-                String firstLine = message.split("\\R", 2)[0];
-
-                if (firstLineAppended) {
-                    output.append("\n");
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-last":
+                    case "-limit":
+                        limit = Integer.parseInt(value);
+                        break;
+                    case "-from":
+                        from = Integer.parseInt(value);
+                        break;
+                    case "-before":
+                        before = parseTime(value);
+                        break;
+                    case "-grep":
+                        grep = value;
+                        break;
+                    default:
+                        return new Repository.HistoryQuery();
                 }
-
-                output.append(i).append(": ").append(firstLine);
-                firstLineAppended = true;
             }
-            if (firstLineAppended) {
-                output.append("\n");
+            return new Repository.HistoryQuery(from, limit, before, grep);
+        } catch (NumberFormatException | DateTimeParseException | PatternSyntaxException e) {
+            return new Repository.HistoryQuery();
+        }
+    }
+
+    private static long parseTime(String value) {
+        if (value.contains("T")) {
+            try {
+                return Instant.parse(value).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
             }
-            exitHandler.exit(0, output.toString());
-        } catch (IOException e) {
-            systemError(e);
         }
+        return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
     private void executeVersion(String[] args) throws IOException {
-        try {
-            int versionNum;
-
-            if (args.length == 1) {
-                versionNum = Integer.parseInt(Files.readString(activePath).trim());
-            } else {
-                String versionStr = args[1];
-                try {
-                    versionNum = Integer.parseInt(versionStr);
-                } catch (NumberFormatException e) {
-                    exitHandler.exit(60, "Invalid version number: " + versionStr);
-                    return;
-                }
-                Path versionPathToCheck = versionsPath.resolve(String.valueOf(versionNum));
-                if (!Files.isDirectory(versionPathToCheck)) {
-                    exitHandler.exit(60, "Invalid version number: " + versionStr);
-                    return;
-                }
+        Repository.Version version;
+        if (args.length == 1) {
+            version = repository.version();
+        } else {
+            String versionStr = args[1];
+            try {
+                version = repository.version(Integer.parseInt(versionStr));
+            } catch (NumberFormatException e) {
+                version = null;
+            }
+            if (version == null) {
+                exit(60, "Invalid version number: " + versionStr);
+                return;
             }
-            Path msgPath = versionsPath.resolve(String.valueOf(versionNum)).resolve(messageFile);
-            String message = Files.readString(msgPath);
-
-            exitHandler.exit(0, "Version: " + versionNum + "\n" + message);
-        } catch (IOException e) {
-            systemError(e);
         }
+        exit(0, "Version: " + version.number() + "\n" + version.message());
     }
 
-    private void executeInit(String[] args) throws IOException {
-        if (Files.isDirectory(gvtPath)) {
-            exitHandler.exit(10, "Current directory is already initialized.");
+    private void executeDiff(String[] args) throws IOException {
+        if (args.length < 2) {
+            exit(60, "Invalid version number: ");
             return;
         }
-        Files.createDirectory(gvtPath);
-        Files.createDirectory(versionsPath);
-        Path vzeroPath = versionsPath.resolve("0");
-        Files.createDirectory(vzeroPath);
-
-        Files.writeString(vzeroPath.resolve(messageFile), "GVT initialized.");
-        Files.writeString(latestPath, "0");
-        Files.writeString(activePath, "0");
-        exitHandler.exit(0, "Current directory initialized successfully.");
+        int[] versions = new int[args.length - 1];
+        for (int i = 0; i < versions.length && i < 2; i++) {
+            try {
+                versions[i] = Integer.parseInt(args[i + 1]);
+            } catch (NumberFormatException e) {
+                exit(60, "Invalid version number: " + args[i + 1]);
+                return;
+            }
+        }
+        StringBuilder output = new StringBuilder();
+        Repository.DiffVisitor visitor = line -> buffer(output, line);
+        Repository.Result result = versions.length > 1
+                ? repository.diff(versions[0], versions[1], visitor)
+                : repository.diff(versions[0], visitor);
+        if (!result.succeeded()) {
+            exit(result.code(), result.message());
+            return;
+        }
+        exit(0, output.toString());
     }
 
-    private int getLatestVersionNum() throws IOException {
-        String content = Files.readString(latestPath).trim();
-        return Integer.parseInt(content);
+    private void executeStats(String[] args) throws IOException {
+        Repository.Stats stats = repository.stats();
+        exit(0, "Versions: " + stats.versions()
+                + "\nLogical size: " + stats.logicalBytes() + " bytes"
+                + "\nUnique contents: " + stats.uniqueContents() + ", " + stats.uniqueBytes() + " bytes"
+                + "\nStored size: " + stats.storedBytes() + " bytes"
+                + "\nDeduplication ratio: " + String.format(Locale.ROOT, "%.2f", stats.deduplicationRatio()));
     }
 
-    private int createNewVersion(int prevVersion, String message) throws IOException {
-
-        int newVersionNum = prevVersion + 1;
-        Path baseVersionPath = versionsPath.resolve(String.valueOf(prevVersion));
-        Path newVersionPath = versionsPath.resolve(String.valueOf(newVersionNum));
-
-        Files.createDirectory(newVersionPath);
-        Files.writeString(newVersionPath.resolve(messageFile), message);
-
-        File oldFolder = baseVersionPath.toFile();
-        File[] listaPlikow = oldFolder.listFiles();
-
-        if (listaPlikow != null) {
-            for (File plik : listaPlikow) {
-                String fileName = plik.getName();
-                if (!fileName.equals(messageFile)) {
-                    Path destinationFile = newVersionPath.resolve(fileName);
-                    Files.copy(plik.toPath(), destinationFile, StandardCopyOption.REPLACE_EXISTING);
-                }
-            }
+    private void executeDaemon(String[] args) throws IOException {
+        if (GvtDaemon.isStopRequest(args)) {
+            exit(1, "Daemon is not running.");
+            return;
         }
+        Path socketPath = root.resolve(gvt_dir).resolve(DaemonSocketFile);
+        System.out.println("Daemon listening on " + socketPath);
+        new GvtDaemon(socketPath).serve();
+        exit(0, "Daemon stopped.");
+    }
 
-        Files.writeString(latestPath, String.valueOf(newVersionNum));
-        Files.writeString(activePath, String.valueOf(newVersionNum));
-
-        return newVersionNum;
+    private void executeInit(String[] args) throws IOException {
+        String compression = Codecs.DEFAULT;
+        if (args.length == 3 && args[1].equals("-compression")) {
+            compression = args[2];
+        }
+        repository = null;
+        report(Repository.init(root, compression));
     }
 
-    private Set<String> getFiles(int versionNum) throws IOException {
-
-        Set<String> trackedFiles = new HashSet<>();
-        Path versionPath = versionsPath.resolve(String.valueOf(versionNum));
-        File katalogWersji = versionPath.toFile();
-        File[] listaPlikow = katalogWersji.listFiles();
-        if (listaPlikow != null) {
-            for (File plik : listaPlikow) {
-                String fileName = plik.getName();
-                if (!fileName.equals(messageFile)) {
-                    trackedFiles.add(fileName);
-                }
+    private void exit(int code, String message) {
+        long elapsed = metrics.finish(command, code);
+        if (printStats) {
+            System.err.println(metrics.describe(command, elapsed));
+        }
+        if (repository != null && repository.metricsEnabled()) {
+            try {
+                repository.recordMetrics(metrics.totals(command, elapsed));
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
             }
         }
-        return trackedFiles;
+        exitHandler.exit(code, message);
     }
 
     private void systemError(IOException e) {
         e.printStackTrace(System.err);
-        exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
-    }
-
-    private void copyFile(Path source, Path dest) throws IOException {
-        if (dest.getParent() != null) {
-            Files.createDirectories(dest.getParent());
-        }
-        Files.copy(source, dest, StandardCopyOption.REPLACE_EXISTING);
+        exit(-3, "Underlying system problem. See ERR for details.");
     }
 }
@@ -0,0 +1,188 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class GvtDaemon {
+
+    private static class CapturingExitHandler extends ExitHandler {
+
+        private int code;
+
+        @Override
+        void exitOperation(int code) {
+            this.code = code;
+        }
+    }
+
+    private static class FrameOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final int stream;
+
+        FrameOutputStream(DataOutputStream out, int stream) {
+            this.out = out;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            synchronized (out) {
+                out.writeByte(stream);
+                out.writeInt(length);
+                out.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+    }
+
+    private static int exitFrame = 0;
+    private static int outputFrame = 1;
+    private static int errorFrame = 2;
+    private static int frameBufferSize = 64 * 1024;
+
+    private final Path socketPath;
+    private final CapturingExitHandler exitHandler = new CapturingExitHandler();
+    private final Gvt gvt = new Gvt(exitHandler);
+
+    GvtDaemon(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    void serve() throws IOException {
+        Files.deleteIfExists(socketPath);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            boolean running = true;
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    running = handle(client);
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    static boolean isStopRequest(String... args) {
+        return args.length == 2 && args[0].equals("daemon") && args[1].equals("stop");
+    }
+
+    static boolean forward(Path socketPath, ExitHandler exitHandler, String... args) {
+        if (args.length == 0 || args[0].equals("init") || args[0].equals("batch")
+                || (args[0].equals("daemon") && !isStopRequest(args))
+                || !Files.exists(socketPath)) {
+            return false;
+        }
+        int code;
+        boolean received = false;
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                writeBytes(out, arg.getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                int frame = in.readByte();
+                received = true;
+                if (frame == exitFrame) {
+                    code = in.readInt();
+                    break;
+                }
+                (frame == errorFrame ? System.err : System.out).write(readBytes(in));
+            }
+        } catch (IOException e) {
+            if (!received) {
+                return false;
+            }
+            System.out.flush();
+            e.printStackTrace(System.err);
+            exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+            return true;
+        }
+        System.out.flush();
+        System.err.flush();
+        exitHandler.exitOperation(code);
+        return true;
+    }
+
+    private boolean handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = new String(readBytes(in), StandardCharsets.UTF_8);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        PrintStream frameOut = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, outputFrame),
+                frameBufferSize), false, StandardCharsets.UTF_8);
+        PrintStream frameErr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, errorFrame),
+                frameBufferSize), false, StandardCharsets.UTF_8);
+        boolean running = !isStopRequest(args);
+        exitHandler.code = 0;
+        if (running) {
+            PrintStream stdout = System.out;
+            PrintStream stderr = System.err;
+            System.setOut(frameOut);
+            System.setErr(frameErr);
+            try {
+                gvt.mainInternal(args);
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+                exitHandler.exit(-3, "Underlying system problem. See ERR for details.");
+            } finally {
+                System.setOut(stdout);
+                System.setErr(stderr);
+            }
+        } else {
+            frameOut.println("Daemon stopped.");
+        }
+        frameOut.flush();
+        frameErr.flush();
+        if (frameOut.checkError() || frameErr.checkError()) {
+            return running;
+        }
+        synchronized (out) {
+            out.writeByte(exitFrame);
+            out.writeInt(exitHandler.code);
+            out.flush();
+        }
+        return running;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,270 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+
+class HistoryLog {
+
+    static class Record {
+        final int version;
+        final int parent;
+        final long timestamp;
+        final String manifestHash;
+        final String message;
+
+        Record(int version, int parent, long timestamp, String manifestHash, String message) {
+            this.version = version;
+            this.parent = parent;
+            this.timestamp = timestamp;
+            this.manifestHash = manifestHash;
+            this.message = message;
+        }
+    }
+
+    private static int hashSize = 32;
+    private static int indexEntrySize = 64;
+    private static int messageOffsetField = 8;
+    private static int messageLengthField = 16;
+    private static int parentField = 20;
+    private static int timestampField = 24;
+    private static int manifestField = 32;
+
+    private final Path logPath;
+    private final Path indexPath;
+    private MappedByteBuffer mappedIndex;
+
+    HistoryLog(Path logPath, Path indexPath) {
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+    }
+
+    synchronized void refresh() throws IOException {
+        mappedIndex = null;
+        if (Files.exists(logPath) && !Files.exists(indexPath)) {
+            rebuildIndex();
+        }
+    }
+
+    boolean exists() {
+        return Files.exists(logPath);
+    }
+
+    int size() throws IOException {
+        if (!Files.exists(indexPath)) {
+            return 0;
+        }
+        return (int) (Files.size(indexPath) / indexEntrySize);
+    }
+
+    boolean isInSync(int latestVersion) throws IOException {
+        return Files.exists(logPath) && size() == latestVersion + 1;
+    }
+
+    synchronized void append(Record record) throws IOException {
+        byte[] encoded = encode(record);
+        long offset;
+        try (FileChannel log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            offset = log.size();
+            writeFully(log, ByteBuffer.wrap(encoded), offset);
+            SafeFiles.sync(log);
+        }
+        try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            writeFully(index, indexEntry(record, offset, encoded.length), (long) record.version * indexEntrySize);
+            SafeFiles.sync(index);
+        }
+    }
+
+    long logLength() throws IOException {
+        return Files.exists(logPath) ? Files.size(logPath) : 0;
+    }
+
+    long indexLength() throws IOException {
+        return Files.exists(indexPath) ? Files.size(indexPath) : 0;
+    }
+
+    synchronized void truncate(long logLength, long indexLength) throws IOException {
+        mappedIndex = null;
+        truncate(logPath, logLength);
+        truncate(indexPath, indexLength);
+    }
+
+    String manifestHash(int version) throws IOException {
+        byte[] hash = new byte[hashSize];
+        entry(version).get(manifestField, hash);
+        return ObjectStore.toHex(hash);
+    }
+
+    int parent(int version) throws IOException {
+        return entry(version).getInt(parentField);
+    }
+
+    long timestamp(int version) throws IOException {
+        return entry(version).getLong(timestampField);
+    }
+
+    String message(int version) throws IOException {
+        try (MessageReader messages = messages()) {
+            return messages.read(version);
+        }
+    }
+
+    MessageReader messages() throws IOException {
+        return new MessageReader(FileChannel.open(logPath, StandardOpenOption.READ));
+    }
+
+    class MessageReader implements Closeable {
+
+        private final FileChannel log;
+
+        private MessageReader(FileChannel log) {
+            this.log = log;
+        }
+
+        String read(int version) throws IOException {
+            ByteBuffer entry = entry(version);
+            ByteBuffer message = ByteBuffer.allocate(entry.getInt(messageLengthField));
+            long position = entry.getLong(messageOffsetField);
+            while (message.hasRemaining()) {
+                if (log.read(message, position + message.position()) < 0) {
+                    throw new EOFException("Truncated history message for version " + version);
+                }
+            }
+            return new String(message.array(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            log.close();
+        }
+    }
+
+    Record read(int version) throws IOException {
+        try (FileChannel log = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            log.position(offsetOf(version));
+            return decode(new DataInputStream(new BufferedInputStream(Channels.newInputStream(log))));
+        }
+    }
+
+    synchronized void rebuild(List<Record> records) throws IOException {
+        mappedIndex = null;
+        Path tempLog = logPath.resolveSibling(logPath.getFileName() + ".tmp");
+        Path tempIndex = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (DataOutputStream log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempLog)));
+             OutputStream index = new BufferedOutputStream(Files.newOutputStream(tempIndex))) {
+            long offset = 0;
+            for (Record record : records) {
+                byte[] encoded = encode(record);
+                index.write(indexEntry(record, offset, encoded.length).array());
+                log.write(encoded);
+                offset += encoded.length;
+            }
+        }
+        SafeFiles.sync(tempLog);
+        SafeFiles.sync(tempIndex);
+        Files.move(tempLog, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tempIndex, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        SafeFiles.syncDirectory(logPath.toAbsolutePath().getParent());
+    }
+
+    synchronized void rebuildIndex() throws IOException {
+        mappedIndex = null;
+        Path tempIndex = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (DataInputStream log = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)));
+             OutputStream index = new BufferedOutputStream(Files.newOutputStream(tempIndex))) {
+            long offset = 0;
+            long length = Files.size(logPath);
+            while (offset < length) {
+                Record record = decode(log);
+                byte[] encoded = encode(record);
+                index.write(indexEntry(record, offset, encoded.length).array());
+                offset += encoded.length;
+            }
+        }
+        SafeFiles.sync(tempIndex);
+        Files.move(tempIndex, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        SafeFiles.syncDirectory(indexPath.toAbsolutePath().getParent());
+    }
+
+    private static void truncate(Path path, long length) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+            SafeFiles.sync(channel);
+        }
+    }
+
+    private long offsetOf(int version) throws IOException {
+        return entry(version).getLong(0);
+    }
+
+    private synchronized ByteBuffer entry(int version) throws IOException {
+        long position = (long) version * indexEntrySize;
+        if (version < 0) {
+            throw new EOFException("No history entry for version " + version);
+        }
+        if (mappedIndex == null || position + indexEntrySize > mappedIndex.capacity()) {
+            try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                mappedIndex = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+            }
+            if (position + indexEntrySize > mappedIndex.capacity()) {
+                throw new EOFException("No history entry for version " + version);
+            }
+        }
+        return mappedIndex.slice((int) position, indexEntrySize);
+    }
+
+    private static ByteBuffer indexEntry(Record record, long offset, int encodedLength) {
+        int messageLength = record.message.getBytes(StandardCharsets.UTF_8).length;
+        ByteBuffer entry = ByteBuffer.allocate(indexEntrySize);
+        entry.putLong(0, offset);
+        entry.putLong(messageOffsetField, offset + encodedLength - messageLength);
+        entry.putInt(messageLengthField, messageLength);
+        entry.putInt(parentField, record.parent);
+        entry.putLong(timestampField, record.timestamp);
+        entry.put(manifestField, ObjectStore.fromHex(record.manifestHash));
+        return entry;
+    }
+
+    private static byte[] encode(Record record) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(record.version);
+        out.writeInt(record.parent);
+        out.writeLong(record.timestamp);
+        out.writeUTF(record.manifestHash);
+        byte[] message = record.message.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(message.length);
+        out.write(message);
+        out.flush();
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.size() + Integer.BYTES);
+        new DataOutputStream(framed).writeInt(payload.size());
+        payload.writeTo(framed);
+        return framed.toByteArray();
+    }
+
+    private static Record decode(DataInputStream in) throws IOException {
+        in.readInt();
+        int version = in.readInt();
+        int parent = in.readInt();
+        long timestamp = in.readLong();
+        String manifestHash = in.readUTF();
+        byte[] message = new byte[in.readInt()];
+        in.readFully(message);
+        return new Record(version, parent, timestamp, manifestHash, new String(message, StandardCharsets.UTF_8));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+class Manifest {
+
+    static class Entry {
+        final String hash;
+        final long size;
+        final long mtime;
+
+        Entry(String hash, long size, long mtime) {
+            this.hash = hash;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    private final SortedMap<String, Entry> entries = new TreeMap<>();
+
+    Manifest() {
+    }
+
+    Manifest(Manifest other) {
+        entries.putAll(other.entries);
+    }
+
+    static Manifest read(Path path) throws IOException {
+        return parse(Files.readAllLines(path, StandardCharsets.UTF_8), path.toString());
+    }
+
+    static Manifest parse(byte[] content, String source) throws IOException {
+        return parse(new String(content, StandardCharsets.UTF_8).lines().collect(Collectors.toList()), source);
+    }
+
+    private static Manifest parse(List<String> lines, String source) throws IOException {
+        Manifest manifest = new Manifest();
+        for (String line : lines) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ", 4);
+            if (parts.length != 4) {
+                throw new IOException("Corrupted manifest " + source + ": " + line);
+            }
+            try {
+                manifest.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupted manifest " + source + ": " + line, e);
+            }
+        }
+        return manifest;
+    }
+
+    void write(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(entry.hash + " " + entry.size + " " + entry.mtime + " " + e.getKey());
+                writer.newLine();
+            }
+        }
+    }
+
+    boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    void put(String name, Entry entry) {
+        entries.put(name, entry);
+    }
+
+    void remove(String name) {
+        entries.remove(name);
+    }
+
+    Set<String> names() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+}
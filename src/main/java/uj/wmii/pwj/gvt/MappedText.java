@@ -0,0 +1,143 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+class MappedText {
+
+    private static int segmentBits = 30;
+    private static long segmentSize = 1L << segmentBits;
+    private static int binaryProbe = 8000;
+
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    private MappedText(long size, MappedByteBuffer[] segments) {
+        this.size = size;
+        this.segments = segments;
+    }
+
+    static MappedText map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) >>> segmentBits)];
+            for (int i = 0; i < segments.length; i++) {
+                long offset = (long) i << segmentBits;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(segmentSize, size - offset));
+            }
+            return new MappedText(size, segments);
+        }
+    }
+
+    static MappedText empty() {
+        return new MappedText(0, new MappedByteBuffer[0]);
+    }
+
+    long size() {
+        return size;
+    }
+
+    byte get(long position) {
+        return segments[(int) (position >>> segmentBits)].get((int) (position & (segmentSize - 1)));
+    }
+
+    boolean isBinary() {
+        long limit = Math.min(size, binaryProbe);
+        for (long i = 0; i < limit; i++) {
+            if (get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long lineStart(long position) {
+        while (position > 0 && get(position - 1) != '\n') {
+            position--;
+        }
+        return position;
+    }
+
+    long lineEnd(long position) {
+        while (position < size && get(position) != '\n') {
+            position++;
+        }
+        return position < size ? position + 1 : size;
+    }
+
+    long countLines(long start, long end) {
+        long lines = 0;
+        for (long position = start; position < end; ) {
+            ByteBuffer chunk = slice(position, end - position);
+            int length = chunk.remaining();
+            for (int i = 0; i < length; i++) {
+                if (chunk.get(i) == '\n') {
+                    lines++;
+                }
+            }
+            position += length;
+        }
+        return lines;
+    }
+
+    int hash(long start, long end) {
+        int hash = 1;
+        for (long i = start; i < end; i++) {
+            hash = 31 * hash + get(i);
+        }
+        return hash;
+    }
+
+    boolean regionEquals(long start, long end, MappedText other, long otherStart, long otherEnd) {
+        if (end - start != otherEnd - otherStart) {
+            return false;
+        }
+        while (start < end) {
+            ByteBuffer mine = slice(start, end - start);
+            ByteBuffer theirs = other.slice(otherStart, mine.remaining());
+            mine.limit(theirs.remaining());
+            if (mine.mismatch(theirs) >= 0) {
+                return false;
+            }
+            start += theirs.remaining();
+            otherStart += theirs.remaining();
+        }
+        return true;
+    }
+
+    String text(long start, long end) {
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static long commonPrefix(MappedText a, long aStart, MappedText b, long bStart) {
+        long limit = Math.min(a.size - aStart, b.size - bStart);
+        long matched = 0;
+        while (matched < limit) {
+            ByteBuffer left = a.slice(aStart + matched, limit - matched);
+            ByteBuffer right = b.slice(bStart + matched, left.remaining());
+            left.limit(right.remaining());
+            int mismatch = left.mismatch(right);
+            if (mismatch >= 0) {
+                return matched + mismatch;
+            }
+            matched += right.remaining();
+        }
+        return limit;
+    }
+
+    private ByteBuffer slice(long position, long length) {
+        ByteBuffer segment = segments[(int) (position >>> segmentBits)];
+        int offset = (int) (position & (segmentSize - 1));
+        int available = (int) Math.min(length, segment.capacity() - offset);
+        return segment.slice(offset, available);
+    }
+}
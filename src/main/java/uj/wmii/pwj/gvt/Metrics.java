@@ -0,0 +1,230 @@
+package uj.wmii.pwj.gvt;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+class Metrics {
+
+    enum Counter {
+        FILES_READ("files.read", "files read"),
+        BYTES_READ("bytes.read", "bytes read"),
+        FILES_WRITTEN("files.written", "files written"),
+        BYTES_WRITTEN("bytes.written", "bytes written"),
+        FILES_CHECKED("files.checked", "files checked"),
+        FILES_HASHED("files.hashed", "files hashed"),
+        FILES_DELETED("files.deleted", "files deleted"),
+        OBJECTS_WRITTEN("objects.written", "objects written"),
+        FSYNCS("fsyncs", "fsyncs");
+
+        final String key;
+        final String label;
+
+        Counter(String key, String label) {
+            this.key = key;
+            this.label = label;
+        }
+    }
+
+    @Name("uj.wmii.pwj.gvt.Command")
+    @Label("Gvt Command")
+    @Category("Gvt")
+    static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+        @Label("Exit Code")
+        int exitCode;
+        @Label("Files Read")
+        long filesRead;
+        @Label("Files Written")
+        long filesWritten;
+        @Label("Bytes Read")
+        long bytesRead;
+        @Label("Bytes Written")
+        long bytesWritten;
+        @Label("Fsyncs")
+        long fsyncs;
+    }
+
+    @Name("uj.wmii.pwj.gvt.Phase")
+    @Label("Gvt Phase")
+    @Category("Gvt")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    static class Phase implements AutoCloseable {
+        private final Metrics metrics;
+        private final String name;
+        private final PhaseEvent event;
+        private final long start;
+
+        private Phase(Metrics metrics, String name, PhaseEvent event) {
+            this.metrics = metrics;
+            this.name = name;
+            this.event = event;
+            this.start = metrics != null ? System.nanoTime() : 0;
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (metrics != null) {
+                metrics.phaseNanos.computeIfAbsent(name, key -> new LongAdder()).add(System.nanoTime() - start);
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.phase = name;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private static String commandsKey = "commands";
+    private static String commandPrefix = "command.";
+    private static String phasePrefix = "phase.";
+    private static String nanosSuffix = ".nanos";
+    private static String elapsedKey = "elapsed.nanos";
+    private static ThreadLocal<Metrics> current = new ThreadLocal<>();
+    private static Phase noPhase = new Phase(null, null, null);
+
+    private static class PhaseEventType {
+        static EventType type = EventType.getEventType(PhaseEvent.class);
+    }
+
+    private volatile boolean enabled;
+    private final LongAdder[] counters = newCounters();
+    private final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+    private final CommandEvent commandEvent;
+    private final long commandStart;
+
+    Metrics(boolean enabled) {
+        this.enabled = enabled;
+        this.commandStart = System.nanoTime();
+        this.commandEvent = FlightRecorder.isInitialized() ? new CommandEvent() : null;
+        if (commandEvent != null) {
+            commandEvent.begin();
+        }
+    }
+
+    static Metrics current() {
+        return current.get();
+    }
+
+    static Metrics bind(Metrics metrics) {
+        Metrics previous = current.get();
+        if (metrics != null) {
+            current.set(metrics);
+        } else {
+            current.remove();
+        }
+        return previous;
+    }
+
+    void enable() {
+        enabled = true;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    static void count(Counter counter, long amount) {
+        Metrics metrics = current.get();
+        if (metrics != null && metrics.enabled) {
+            metrics.counters[counter.ordinal()].add(amount);
+        }
+    }
+
+    static Phase phase(String name) {
+        Metrics metrics = current.get();
+        boolean timed = metrics != null && metrics.enabled;
+        boolean recorded = FlightRecorder.isInitialized() && PhaseEventType.type.isEnabled();
+        if (!timed && !recorded) {
+            return noPhase;
+        }
+        return new Phase(timed ? metrics : null, name, recorded ? new PhaseEvent() : null);
+    }
+
+    long finish(String command, int exitCode) {
+        long elapsed = System.nanoTime() - commandStart;
+        CommandEvent event = commandEvent;
+        if (event == null) {
+            return elapsed;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.exitCode = exitCode;
+            event.filesRead = value(Counter.FILES_READ);
+            event.filesWritten = value(Counter.FILES_WRITTEN);
+            event.bytesRead = value(Counter.BYTES_READ);
+            event.bytesWritten = value(Counter.BYTES_WRITTEN);
+            event.fsyncs = value(Counter.FSYNCS);
+            event.commit();
+        }
+        return elapsed;
+    }
+
+    String describe(String command, long elapsedNanos) {
+        StringBuilder out = new StringBuilder("Metrics for " + command + ": ");
+        for (Counter counter : Counter.values()) {
+            out.append(value(counter)).append(' ').append(counter.label)
+                    .append(counter.ordinal() + 1 < Counter.values().length ? ", " : ".\n");
+        }
+        for (Map.Entry<String, Long> phase : new TreeMap<>(phaseTotals()).entrySet()) {
+            out.append("Phase ").append(phase.getKey()).append(": ").append(millis(phase.getValue())).append(" ms\n");
+        }
+        out.append("Elapsed: ").append(millis(elapsedNanos)).append(" ms");
+        return out.toString();
+    }
+
+    SortedMap<String, Long> totals(String command, long elapsedNanos) {
+        SortedMap<String, Long> totals = new TreeMap<>();
+        totals.put(commandsKey, 1L);
+        totals.put(commandPrefix + command, 1L);
+        totals.put(elapsedKey, elapsedNanos);
+        for (Counter counter : Counter.values()) {
+            totals.put(counter.key, value(counter));
+        }
+        for (Map.Entry<String, Long> phase : phaseTotals().entrySet()) {
+            totals.put(phasePrefix + phase.getKey() + nanosSuffix, phase.getValue());
+        }
+        return totals;
+    }
+
+    private long value(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    private Map<String, Long> phaseTotals() {
+        Map<String, Long> totals = new HashMap<>();
+        phaseNanos.forEach((name, nanos) -> totals.put(name, nanos.sum()));
+        return totals;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static LongAdder[] newCounters() {
+        LongAdder[] adders = new LongAdder[Counter.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
@@ -0,0 +1,666 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+class ObjectStore {
+
+    enum Kind {
+        RAW(""), COMPRESSED(".z"), DELTA(".delta"), CHUNKS(".chunks");
+
+        final String suffix;
+
+        Kind(String suffix) {
+            this.suffix = suffix;
+        }
+    }
+
+    private static String hashAlgorithm = "SHA-256";
+    private static String PackDir = "pack";
+    private static long chunkingThreshold = 1024 * 1024;
+    private static int bufferSize = 64 * 1024;
+    private static int keyframeInterval = 16;
+    private static long packSizeLimit = 1024L * 1024 * 1024;
+    private static long packObjectLimit = 64L * 1024 * 1024;
+    private static ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(bufferSize));
+
+    private final Path objectsPath;
+    private final Path packsPath;
+    private final FileCopier copier = new FileCopier();
+    private volatile Codec codec;
+    private volatile List<PackFile> packs = List.of();
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong bytesReused = new AtomicLong();
+    private final AtomicInteger deltasApplied = new AtomicInteger();
+    private final AtomicLong reconstructionNanos = new AtomicLong();
+
+    ObjectStore(Path objectsPath) {
+        this.objectsPath = objectsPath;
+        this.packsPath = objectsPath.resolve(PackDir);
+    }
+
+    void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    synchronized void refreshPacks() throws IOException {
+        Map<Path, PackFile> opened = new HashMap<>();
+        for (PackFile pack : packs) {
+            opened.put(pack.indexPath(), pack);
+        }
+        List<PackFile> current = new ArrayList<>();
+        if (Files.isDirectory(packsPath)) {
+            try (DirectoryStream<Path> indexes = Files.newDirectoryStream(packsPath, "*" + PackFile.indexSuffix)) {
+                for (Path index : indexes) {
+                    PackFile pack = opened.get(index);
+                    current.add(pack != null ? pack : PackFile.open(index));
+                }
+            }
+        }
+        packs = List.copyOf(current);
+    }
+
+    String store(Path source) throws IOException {
+        return store(source, false);
+    }
+
+    String store(Path source, boolean immutable) throws IOException {
+        if (!immutable && Files.size(source) >= chunkingThreshold) {
+            return storeChunked(source);
+        }
+        if (!copier.canShareBlocks(source, immutable)) {
+            return storeStreaming(source);
+        }
+        String hash = hash(source);
+        if (contains(hash)) {
+            return hash;
+        }
+        Path target = objectPath(hash);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            copier.copy(source, temp, immutable);
+            SafeFiles.sync(temp);
+            publish(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return hash;
+    }
+
+    String storeDelta(Path source, String baseHash, long baseSize) throws IOException {
+        Kind baseKind = kindOf(baseHash);
+        if (Files.size(source) >= chunkingThreshold || baseSize >= chunkingThreshold || baseKind == null
+                || baseKind == Kind.CHUNKS || depth(baseHash) + 1 >= keyframeInterval) {
+            return store(source);
+        }
+        byte[] target = Files.readAllBytes(source);
+        String hash = hash(target);
+        if (contains(hash)) {
+            return hash;
+        }
+        byte[] base = read(baseHash);
+        byte[] operations = Delta.encode(base, target);
+        if (operations.length >= target.length / 2) {
+            return store(source);
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(operations.length + 128);
+        DataOutputStream out = new DataOutputStream(encoded);
+        out.writeUTF(baseHash);
+        out.writeInt(depth(baseHash) + 1);
+        out.writeLong(target.length);
+        out.write(operations);
+        out.flush();
+
+        Path deltaPath = loosePath(hash, Kind.DELTA);
+        Files.createDirectories(deltaPath.getParent());
+        Path temp = Files.createTempFile(deltaPath.getParent(), hash, ".tmp");
+        try {
+            Files.write(temp, encoded.toByteArray());
+            SafeFiles.sync(temp);
+            publish(temp, deltaPath);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        bytesSaved.addAndGet(target.length - encoded.size());
+        return hash;
+    }
+
+    private String storeStreaming(Path source) throws IOException {
+        Files.createDirectories(objectsPath);
+        Path temp = Files.createTempFile(objectsPath, "incoming", ".tmp");
+        try {
+            MessageDigest digest = newDigest();
+            ByteBuffer buffer = buffers.get();
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 WritableByteChannel out = Channels.newChannel(openForWrite(temp))) {
+                buffer.clear();
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+            SafeFiles.sync(temp);
+            String hash = toHex(digest.digest());
+            if (!contains(hash)) {
+                Path target = storedPath(hash);
+                Files.createDirectories(target.getParent());
+                publish(temp, target);
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private String storeChunked(Path source) throws IOException {
+        Files.createDirectories(objectsPath);
+        Path temp = Files.createTempFile(objectsPath, "incoming", ".tmp");
+        try {
+            MessageDigest digest = newDigest();
+            try (InputStream in = Files.newInputStream(source);
+                 BufferedWriter list = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                Chunker.split(in, (data, length) -> {
+                    digest.update(data, 0, length);
+                    list.write(storeChunk(data, length) + " " + length);
+                    list.newLine();
+                });
+            }
+            SafeFiles.sync(temp);
+            String hash = toHex(digest.digest());
+            if (!contains(hash)) {
+                Path target = loosePath(hash, Kind.CHUNKS);
+                Files.createDirectories(target.getParent());
+                publish(temp, target);
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    String store(byte[] content) throws IOException {
+        String hash = hash(content);
+        if (!contains(hash)) {
+            writeObject(hash, content, content.length);
+        }
+        return hash;
+    }
+
+    private String storeChunk(byte[] data, int length) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(data, 0, length);
+        String hash = toHex(digest.digest());
+        Kind existing = kindOf(hash);
+        if (existing == Kind.RAW || existing == Kind.COMPRESSED) {
+            bytesReused.addAndGet(length);
+            return hash;
+        }
+        writeObject(hash, data, length);
+        return hash;
+    }
+
+    private void writeObject(String hash, byte[] data, int length) throws IOException {
+        Path target = storedPath(hash);
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), hash, ".tmp");
+        try {
+            try (OutputStream out = openForWrite(temp)) {
+                out.write(data, 0, length);
+            }
+            SafeFiles.sync(temp);
+            publish(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    void restore(String hash, Path dest) throws IOException {
+        Kind kind = requireKind(hash);
+        if (kind == Kind.RAW && Files.exists(objectPath(hash))) {
+            copier.copy(objectPath(hash), dest, false);
+            return;
+        }
+        if (kind == Kind.RAW || kind == Kind.COMPRESSED) {
+            try (InputStream in = openContent(hash, kind);
+                 OutputStream out = Files.newOutputStream(dest)) {
+                in.transferTo(out);
+            }
+            return;
+        }
+        if (kind == Kind.CHUNKS) {
+            try (BufferedReader list = new BufferedReader(new InputStreamReader(openStored(hash, kind), StandardCharsets.UTF_8));
+                 FileChannel out = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream sink = Channels.newOutputStream(out);
+                String line;
+                while ((line = list.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String chunk = chunkHash(line);
+                    if (!Files.exists(objectPath(chunk))) {
+                        try (InputStream in = openContent(chunk, requireKind(chunk))) {
+                            in.transferTo(sink);
+                        }
+                        continue;
+                    }
+                    try (FileChannel in = FileChannel.open(objectPath(chunk), StandardOpenOption.READ)) {
+                        long size = in.size();
+                        long position = 0;
+                        while (position < size) {
+                            position += in.transferTo(position, size - position, out);
+                        }
+                    }
+                }
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        byte[] content = read(hash);
+        reconstructionNanos.addAndGet(System.nanoTime() - start);
+        deltasApplied.incrementAndGet();
+        Files.write(dest, content);
+    }
+
+    Path plainPath(String hash) {
+        Path path = objectPath(hash);
+        return Files.exists(path) ? path : null;
+    }
+
+    byte[] read(String hash) throws IOException {
+        Kind kind = requireKind(hash);
+        if (kind == Kind.RAW || kind == Kind.COMPRESSED) {
+            try (InputStream in = openContent(hash, kind)) {
+                return in.readAllBytes();
+            }
+        }
+        if (kind == Kind.CHUNKS) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            for (String chunk : chunksOf(hash)) {
+                content.write(read(chunk));
+            }
+            return content.toByteArray();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(openStored(hash, kind)))) {
+            String baseHash = in.readUTF();
+            in.readInt();
+            long targetSize = in.readLong();
+            return Delta.apply(read(baseHash), in, targetSize);
+        }
+    }
+
+    boolean contains(String hash) {
+        return kindOf(hash) != null;
+    }
+
+    String checksum(String hash) throws IOException {
+        MessageDigest digest = newDigest();
+        digestContent(hash, digest);
+        return toHex(digest.digest());
+    }
+
+    private void digestContent(String hash, MessageDigest digest) throws IOException {
+        Kind kind = requireKind(hash);
+        if (kind == Kind.CHUNKS) {
+            for (String chunk : chunksOf(hash)) {
+                digestContent(chunk, digest);
+            }
+            return;
+        }
+        if (kind == Kind.DELTA) {
+            digest.update(read(hash));
+            return;
+        }
+        byte[] buffer = new byte[bufferSize];
+        try (InputStream in = openContent(hash, kind)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+    }
+
+    int[] pack(Collection<String> roots) throws IOException {
+        Set<String> reachable = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            String hash = pending.pop();
+            if (!reachable.add(hash)) {
+                continue;
+            }
+            Kind kind = requireKind(hash);
+            if (kind == Kind.DELTA) {
+                try (DataInputStream in = new DataInputStream(openStored(hash, kind))) {
+                    pending.push(in.readUTF());
+                }
+            } else if (kind == Kind.CHUNKS) {
+                pending.addAll(chunksOf(hash));
+            }
+        }
+
+        Set<String> existing = new HashSet<>();
+        List<Path> looseFiles = new ArrayList<>();
+        if (Files.isDirectory(objectsPath)) {
+            try (Stream<Path> paths = Files.walk(objectsPath)) {
+                for (Path path : (Iterable<Path>) paths::iterator) {
+                    if (Files.isRegularFile(path) && !path.startsWith(packsPath)) {
+                        looseFiles.add(path);
+                        if (!path.getFileName().toString().endsWith(".tmp")) {
+                            existing.add(looseHash(path));
+                        }
+                    }
+                }
+            }
+        }
+        for (PackFile pack : packs) {
+            existing.addAll(pack.hashes());
+        }
+
+        List<String> sorted = new ArrayList<>(reachable);
+        Collections.sort(sorted);
+        Set<Path> keptLoose = new HashSet<>();
+        Set<Path> newIndexes = new HashSet<>();
+        PackFile.Writer writer = null;
+        int packed = 0;
+        try {
+            for (String hash : sorted) {
+                Kind kind = requireKind(hash);
+                Path loose = loosePath(hash, kind);
+                if (Files.exists(loose) && Files.size(loose) > packObjectLimit) {
+                    keptLoose.add(loose);
+                    continue;
+                }
+                if (writer != null && writer.size() >= packSizeLimit - packObjectLimit) {
+                    newIndexes.add(writer.finish());
+                    writer.close();
+                    writer = null;
+                }
+                if (writer == null) {
+                    writer = new PackFile.Writer(packsPath);
+                }
+                try (InputStream in = openStored(hash, kind)) {
+                    writer.add(hash, kind.ordinal(), in);
+                }
+                packed++;
+            }
+            if (writer != null && writer.count() > 0) {
+                newIndexes.add(writer.finish());
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+
+        packs = List.of();
+        if (Files.isDirectory(packsPath)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(packsPath)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    String base = name.substring(0, Math.max(0, name.lastIndexOf('.')));
+                    if (!newIndexes.contains(packsPath.resolve(base + PackFile.indexSuffix))) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+        for (Path loose : looseFiles) {
+            if (!keptLoose.contains(loose)) {
+                Files.delete(loose);
+            }
+        }
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(objectsPath)) {
+            for (Path directory : directories) {
+                if (!directory.equals(packsPath) && Files.isDirectory(directory)) {
+                    try (DirectoryStream<Path> content = Files.newDirectoryStream(directory)) {
+                        if (content.iterator().hasNext()) {
+                            continue;
+                        }
+                    }
+                    Files.delete(directory);
+                }
+            }
+        }
+        refreshPacks();
+
+        existing.removeAll(reachable);
+        return new int[] {packed, existing.size()};
+    }
+
+    long storedBytes() throws IOException {
+        if (!Files.isDirectory(objectsPath)) {
+            return 0;
+        }
+        long total = 0;
+        try (Stream<Path> paths = Files.walk(objectsPath)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isRegularFile(path) && !path.getFileName().toString().endsWith(".tmp")) {
+                    total += Files.size(path);
+                }
+            }
+        }
+        return total;
+    }
+
+    Path objectPath(String hash) {
+        return loosePath(hash, Kind.RAW);
+    }
+
+    String copyStats() {
+        return copier.describe();
+    }
+
+    long copies() {
+        return copier.total();
+    }
+
+    void resetStats() {
+        copier.resetStats();
+        bytesSaved.set(0);
+        bytesReused.set(0);
+        deltasApplied.set(0);
+        reconstructionNanos.set(0);
+    }
+
+    long bytesSaved() {
+        return bytesSaved.get();
+    }
+
+    long bytesReused() {
+        return bytesReused.get();
+    }
+
+    int deltasApplied() {
+        return deltasApplied.get();
+    }
+
+    long reconstructionNanos() {
+        return reconstructionNanos.get();
+    }
+
+    private static void publish(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            return;
+        }
+        Metrics.count(Metrics.Counter.OBJECTS_WRITTEN, 1);
+        SafeFiles.syncDirectory(target.getParent());
+    }
+
+    private Path loosePath(String hash, Kind kind) {
+        return objectsPath.resolve(hash.substring(0, 2)).resolve(hash.substring(2) + kind.suffix);
+    }
+
+    private static String looseHash(Path path) {
+        String name = path.getFileName().toString();
+        int suffix = name.indexOf('.');
+        return path.getParent().getFileName() + (suffix < 0 ? name : name.substring(0, suffix));
+    }
+
+    private Kind kindOf(String hash) {
+        for (Kind kind : Kind.values()) {
+            if (Files.exists(loosePath(hash, kind))) {
+                return kind;
+            }
+        }
+        for (PackFile pack : packs) {
+            PackFile.Entry entry = pack.find(hash);
+            if (entry != null) {
+                return Kind.values()[entry.kind];
+            }
+        }
+        return null;
+    }
+
+    private Kind requireKind(String hash) throws IOException {
+        Kind kind = kindOf(hash);
+        if (kind == null) {
+            throw new NoSuchFileException("Missing object " + hash);
+        }
+        return kind;
+    }
+
+    private InputStream openStored(String hash, Kind kind) throws IOException {
+        Path loose = loosePath(hash, kind);
+        if (Files.exists(loose)) {
+            return new BufferedInputStream(Files.newInputStream(loose), bufferSize);
+        }
+        for (PackFile pack : packs) {
+            PackFile.Entry entry = pack.find(hash);
+            if (entry != null && entry.kind == kind.ordinal()) {
+                return pack.open(entry);
+            }
+        }
+        throw new NoSuchFileException("Missing object " + hash);
+    }
+
+    private InputStream openContent(String hash, Kind kind) throws IOException {
+        InputStream in = openStored(hash, kind);
+        if (kind == Kind.RAW) {
+            return in;
+        }
+        try {
+            return Codecs.forName(new DataInputStream(in).readUTF()).decompress(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private List<String> chunksOf(String hash) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        try (BufferedReader list = new BufferedReader(new InputStreamReader(openStored(hash, Kind.CHUNKS), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = list.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    chunks.add(chunkHash(line));
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private boolean compressing() {
+        Codec current = codec;
+        return current != null && !current.name().equals(Codecs.NONE);
+    }
+
+    private Path storedPath(String hash) {
+        return loosePath(hash, compressing() ? Kind.COMPRESSED : Kind.RAW);
+    }
+
+    private OutputStream openForWrite(Path temp) throws IOException {
+        OutputStream out = Files.newOutputStream(temp);
+        Codec current = codec;
+        if (current == null || current.name().equals(Codecs.NONE)) {
+            return out;
+        }
+        try {
+            new DataOutputStream(out).writeUTF(current.name());
+            return current.compress(out);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    private static String chunkHash(String line) throws IOException {
+        int separator = line.indexOf(' ');
+        if (separator <= 0) {
+            throw new IOException("Corrupted chunk list entry: " + line);
+        }
+        return line.substring(0, separator);
+    }
+
+    private int depth(String hash) throws IOException {
+        if (kindOf(hash) != Kind.DELTA) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(openStored(hash, Kind.DELTA))) {
+            in.readUTF();
+            return in.readInt();
+        }
+    }
+
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = buffers.get();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String hash(byte[] content) {
+        return toHex(newDigest().digest(content));
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(hashAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
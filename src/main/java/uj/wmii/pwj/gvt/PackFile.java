@@ -0,0 +1,221 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+class PackFile {
+
+    static class Entry {
+        final int kind;
+        final long offset;
+        final long length;
+
+        Entry(int kind, long offset, long length) {
+            this.kind = kind;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static String packSuffix = ".pack";
+    static String indexSuffix = ".idx";
+    private static int magic = 0x47565450;
+    private static int formatVersion = 1;
+    private static int headerSize = 12;
+    private static int hashSize = 32;
+    private static int recordSize = hashSize + 1 + 8 + 8;
+
+    private final Path indexPath;
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer data;
+    private final int count;
+
+    private PackFile(Path indexPath, MappedByteBuffer index, MappedByteBuffer data) throws IOException {
+        this.indexPath = indexPath;
+        this.index = index;
+        this.data = data;
+        if (index.capacity() < headerSize || index.getInt(0) != magic || index.getInt(4) != formatVersion) {
+            throw new IOException("Corrupted pack index " + indexPath);
+        }
+        this.count = index.getInt(8);
+        if (index.capacity() != headerSize + (long) count * recordSize) {
+            throw new IOException("Corrupted pack index " + indexPath);
+        }
+    }
+
+    static PackFile open(Path indexPath) throws IOException {
+        String name = indexPath.getFileName().toString();
+        Path packPath = indexPath.resolveSibling(name.substring(0, name.length() - indexSuffix.length()) + packSuffix);
+        return new PackFile(indexPath, map(indexPath), map(packPath));
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    Path indexPath() {
+        return indexPath;
+    }
+
+    Entry find(String hash) {
+        byte[] key = ObjectStore.fromHex(hash);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(middle, key);
+            if (comparison == 0) {
+                int record = headerSize + middle * recordSize;
+                return new Entry(index.get(record + hashSize), index.getLong(record + hashSize + 1),
+                        index.getLong(record + hashSize + 9));
+            }
+            if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return null;
+    }
+
+    InputStream open(Entry entry) {
+        ByteBuffer slice = data.duplicate();
+        slice.position((int) entry.offset);
+        slice.limit((int) (entry.offset + entry.length));
+        return new BufferInputStream(slice.slice());
+    }
+
+    List<String> hashes() {
+        List<String> hashes = new ArrayList<>(count);
+        byte[] hash = new byte[hashSize];
+        for (int i = 0; i < count; i++) {
+            index.get(headerSize + i * recordSize, hash);
+            hashes.add(ObjectStore.toHex(hash));
+        }
+        return hashes;
+    }
+
+    private int compare(int record, byte[] key) {
+        int position = headerSize + record * recordSize;
+        for (int i = 0; i < hashSize; i++) {
+            int difference = (index.get(position + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    static class Writer implements Closeable {
+
+        private final Path directory;
+        private final Path tempPack;
+        private final FileChannel pack;
+        private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        private final MessageDigest names = ObjectStore.newDigest();
+        private String lastHash;
+        private int count;
+
+        Writer(Path directory) throws IOException {
+            this.directory = directory;
+            Files.createDirectories(directory);
+            this.tempPack = Files.createTempFile(directory, "incoming", ".tmp");
+            this.pack = FileChannel.open(tempPack, StandardOpenOption.WRITE);
+        }
+
+        long size() throws IOException {
+            return pack.position();
+        }
+
+        int count() {
+            return count;
+        }
+
+        void add(String hash, int kind, InputStream content) throws IOException {
+            if (lastHash != null && lastHash.compareTo(hash) >= 0) {
+                throw new IllegalArgumentException("Pack entries must be added in hash order");
+            }
+            long offset = pack.position();
+            content.transferTo(Channels.newOutputStream(pack));
+            DataOutputStream record = new DataOutputStream(records);
+            record.write(ObjectStore.fromHex(hash));
+            record.writeByte(kind);
+            record.writeLong(offset);
+            record.writeLong(pack.position() - offset);
+            names.update(ObjectStore.fromHex(hash));
+            lastHash = hash;
+            count++;
+        }
+
+        Path finish() throws IOException {
+            SafeFiles.sync(pack);
+            pack.close();
+            String name = "pack-" + ObjectStore.toHex(names.digest()).substring(0, 32);
+            Path packPath = directory.resolve(name + packSuffix);
+            Path indexPath = directory.resolve(name + indexSuffix);
+            if (Files.exists(indexPath)) {
+                Files.delete(tempPack);
+                return indexPath;
+            }
+            Files.move(tempPack, packPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Path tempIndex = Files.createTempFile(directory, "incoming", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempIndex)))) {
+                out.writeInt(magic);
+                out.writeInt(formatVersion);
+                out.writeInt(count);
+                records.writeTo(out);
+            }
+            SafeFiles.sync(tempIndex);
+            Files.move(tempIndex, indexPath, StandardCopyOption.ATOMIC_MOVE);
+            SafeFiles.syncDirectory(directory);
+            return indexPath;
+        }
+
+        @Override
+        public void close() throws IOException {
+            pack.close();
+            Files.deleteIfExists(tempPack);
+        }
+    }
+
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
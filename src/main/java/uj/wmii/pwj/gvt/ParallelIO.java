@@ -0,0 +1,90 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+class ParallelIO {
+
+    interface Task {
+        void run() throws IOException;
+    }
+
+    private static int workers = Integer.getInteger("gvt.workers", Runtime.getRuntime().availableProcessors());
+    private static ForkJoinPool pool;
+
+    private ParallelIO() {
+    }
+
+    static synchronized void setWorkers(int count) {
+        workers = Math.max(1, count);
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    static synchronized int workers() {
+        return workers;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(workers);
+        }
+        return pool;
+    }
+
+    static void runAll(List<Task> tasks) throws IOException {
+        IOException failure = null;
+        if (tasks.size() <= 1 || workers() == 1) {
+            for (Task task : tasks) {
+                try {
+                    task.run();
+                } catch (IOException e) {
+                    failure = aggregate(failure, e);
+                }
+            }
+        } else {
+            ForkJoinPool pool = pool();
+            Metrics metrics = Metrics.current();
+            List<Future<Void>> futures = new ArrayList<>(tasks.size());
+            for (Task task : tasks) {
+                futures.add(pool.submit(() -> {
+                    Metrics previous = Metrics.bind(metrics);
+                    try {
+                        task.run();
+                    } finally {
+                        Metrics.bind(previous);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failure = aggregate(failure, cause instanceof IOException ? (IOException) cause : new IOException(cause));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = aggregate(failure, new IOException("Interrupted while waiting for file operations", e));
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static IOException aggregate(IOException first, IOException next) {
+        if (first == null) {
+            return next;
+        }
+        first.addSuppressed(next);
+        return first;
+    }
+}
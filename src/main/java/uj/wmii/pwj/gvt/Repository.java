@@ -0,0 +1,1474 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+@SuppressWarnings("try")
+public class Repository {
+
+    public enum FileState {
+        MODIFIED, MISSING
+    }
+
+    public static class Result {
+        private final int code;
+        private final String message;
+        private final IOException error;
+        private final long bytesSaved;
+        private final long bytesReused;
+
+        Result(int code, String message) {
+            this(code, message, null, 0, 0);
+        }
+
+        Result(int code, String message, IOException error) {
+            this(code, message, error, 0, 0);
+        }
+
+        Result(int code, String message, IOException error, long bytesSaved, long bytesReused) {
+            this.code = code;
+            this.message = message;
+            this.error = error;
+            this.bytesSaved = bytesSaved;
+            this.bytesReused = bytesReused;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public String message() {
+            return message;
+        }
+
+        public IOException error() {
+            return error;
+        }
+
+        public boolean succeeded() {
+            return code == 0;
+        }
+
+        public long bytesSaved() {
+            return bytesSaved;
+        }
+
+        public long bytesReused() {
+            return bytesReused;
+        }
+    }
+
+    public static class CheckoutResult extends Result {
+        private final int written;
+        private final int skipped;
+        private final int deleted;
+        private final String copyStrategies;
+        private final int deltasApplied;
+        private final long reconstructionMillis;
+
+        CheckoutResult(int code, String message) {
+            this(code, message, 0, 0, 0, null, 0, 0);
+        }
+
+        CheckoutResult(int code, String message, int written, int skipped, int deleted,
+                       String copyStrategies, int deltasApplied, long reconstructionMillis) {
+            super(code, message);
+            this.written = written;
+            this.skipped = skipped;
+            this.deleted = deleted;
+            this.copyStrategies = copyStrategies;
+            this.deltasApplied = deltasApplied;
+            this.reconstructionMillis = reconstructionMillis;
+        }
+
+        public int written() {
+            return written;
+        }
+
+        public int skipped() {
+            return skipped;
+        }
+
+        public int deleted() {
+            return deleted;
+        }
+
+        public String copyStrategies() {
+            return copyStrategies;
+        }
+
+        public int deltasApplied() {
+            return deltasApplied;
+        }
+
+        public long reconstructionMillis() {
+            return reconstructionMillis;
+        }
+    }
+
+    public static class Version {
+        private final int number;
+        private final String message;
+        private final long timestamp;
+
+        Version(int number, String message, long timestamp) {
+            this.number = number;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+
+        public int number() {
+            return number;
+        }
+
+        public String message() {
+            return message;
+        }
+
+        public long timestamp() {
+            return timestamp;
+        }
+    }
+
+    public interface HistoryVisitor {
+        boolean visit(Version version) throws IOException;
+    }
+
+    public interface DiffVisitor {
+        boolean visit(String line) throws IOException;
+    }
+
+    public static class HistoryQuery {
+        private final int from;
+        private final int limit;
+        private final long before;
+        private final Pattern grep;
+
+        public HistoryQuery() {
+            this(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, null);
+        }
+
+        public HistoryQuery(int from, int limit, long before, String grep) {
+            this.from = from;
+            this.limit = limit;
+            this.before = before;
+            this.grep = grep != null ? Pattern.compile(grep) : null;
+        }
+
+        boolean matches(String message) {
+            return grep == null || grep.matcher(message).find();
+        }
+    }
+
+    public static class Status {
+        private final int version;
+        private final Map<String, FileState> changes;
+
+        Status(int version, Map<String, FileState> changes) {
+            this.version = version;
+            this.changes = Collections.unmodifiableMap(changes);
+        }
+
+        public int version() {
+            return version;
+        }
+
+        public Map<String, FileState> changes() {
+            return changes;
+        }
+    }
+
+    public static class Stats {
+        private final int versions;
+        private final long logicalBytes;
+        private final int uniqueContents;
+        private final long uniqueBytes;
+        private final long storedBytes;
+
+        Stats(int versions, long logicalBytes, int uniqueContents, long uniqueBytes, long storedBytes) {
+            this.versions = versions;
+            this.logicalBytes = logicalBytes;
+            this.uniqueContents = uniqueContents;
+            this.uniqueBytes = uniqueBytes;
+            this.storedBytes = storedBytes;
+        }
+
+        public int versions() {
+            return versions;
+        }
+
+        public long logicalBytes() {
+            return logicalBytes;
+        }
+
+        public int uniqueContents() {
+            return uniqueContents;
+        }
+
+        public long uniqueBytes() {
+            return uniqueBytes;
+        }
+
+        public long storedBytes() {
+            return storedBytes;
+        }
+
+        public double deduplicationRatio() {
+            return storedBytes == 0 ? 1.0 : (double) logicalBytes / storedBytes;
+        }
+    }
+
+    private static String gvt_dir = ".gvt";
+    private static String VersionDir = "versions";
+    private static String LatestFile = "latest";
+    private static String ActiveFile = "active";
+    private static String messageFile = ".message";
+    private static String manifestFile = ".manifest";
+    private static String ObjectsDir = "objects";
+    private static String HistoryLogFile = "history.log";
+    private static String LegacyHistoryIndexFile = "history.idx";
+    private static String VersionIndexFile = "versions.idx";
+    private static String JournalFile = "journal";
+    private static String LockFile = "lock";
+    private static String IndexFile = "index";
+    private static String ConfigFile = "config";
+    private static String compressionKey = "compression";
+    private static String MetricsFile = "metrics";
+    private static String FileIndexDir = "files";
+    private static String metricsKey = "metrics";
+    private static String stagingPrefix = ".tmp-";
+    private static int manifestCacheSize = 256;
+    private static int fileIndexBatch = 1024;
+    private static int fsckBatch = 4096;
+
+    private final Path root;
+    private final Path gvtPath;
+    private final Path versionsPath;
+    private final Path latestPath;
+    private final Path activePath;
+    private final Path journalPath;
+    private final ObjectStore objectStore;
+    private final HistoryLog historyLog;
+    private final FileIndex fileIndex;
+    private final StatCache statCache;
+    private boolean metricsEnabled;
+    private final Map<Integer, Tree> manifestCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Tree> eldest) {
+            return size() > manifestCacheSize;
+        }
+    };
+
+    private Repository(Path root) {
+        this.root = root;
+        this.gvtPath = root.resolve(gvt_dir);
+        this.versionsPath = gvtPath.resolve(VersionDir);
+        this.latestPath = gvtPath.resolve(LatestFile);
+        this.activePath = gvtPath.resolve(ActiveFile);
+        this.journalPath = gvtPath.resolve(JournalFile);
+        this.objectStore = new ObjectStore(gvtPath.resolve(ObjectsDir));
+        this.historyLog = new HistoryLog(gvtPath.resolve(HistoryLogFile), gvtPath.resolve(VersionIndexFile));
+        this.fileIndex = new FileIndex(gvtPath.resolve(FileIndexDir));
+        this.statCache = new StatCache(gvtPath.resolve(IndexFile));
+    }
+
+    public static boolean isInitialized(Path root) {
+        return Files.isDirectory(root.resolve(gvt_dir));
+    }
+
+    public static Repository open(Path root) throws IOException {
+        if (!isInitialized(root)) {
+            throw new NoSuchFileException(root.resolve(gvt_dir).toString(), null, "Not a gvt repository");
+        }
+        Repository repository = new Repository(root);
+        repository.statCache.load();
+        repository.loadConfig();
+        return repository;
+    }
+
+    private void loadConfig() throws IOException {
+        Properties config = readConfig();
+        objectStore.setCodec(Codecs.forName(config.getProperty(compressionKey, Codecs.NONE)));
+        metricsEnabled = Boolean.parseBoolean(config.getProperty(metricsKey, "false"));
+    }
+
+    public static Result init(Path root, String compression) throws IOException {
+        Repository repository = new Repository(root);
+        if (Files.isDirectory(repository.gvtPath)) {
+            return new Result(10, "Current directory is already initialized.");
+        }
+        if (!Codecs.names().contains(compression)) {
+            return new Result(1, "Unknown compression codec " + compression + ".");
+        }
+        repository.create(compression);
+        return new Result(0, "Current directory initialized successfully.");
+    }
+
+    private void create(String compression) throws IOException {
+        Files.createDirectory(gvtPath);
+        SafeFiles.writeAtomically(gvtPath.resolve(ConfigFile), compressionKey + "=" + compression + "\n");
+        objectStore.setCodec(Codecs.forName(compression));
+        Files.createDirectory(versionsPath);
+        Path vzeroPath = versionsPath.resolve("0");
+        Files.createDirectory(vzeroPath);
+
+        Files.writeString(vzeroPath.resolve(messageFile), "GVT initialized.");
+        Tree empty = new Tree(objectStore);
+        String manifestHash = empty.store();
+        Files.write(vzeroPath.resolve(manifestFile), empty.serialize());
+        historyLog.append(new HistoryLog.Record(0, -1, System.currentTimeMillis(), manifestHash, "GVT initialized."));
+        fileIndex.append(Collections.emptyMap(), 0);
+        SafeFiles.writeAtomically(latestPath, "0");
+        SafeFiles.writeAtomically(activePath, "0");
+    }
+
+    public Result add(String fileName, String message) throws IOException {
+        return change("add", fileName, message);
+    }
+
+    public Result commit(String fileName, String message) throws IOException {
+        return change("commit", fileName, message);
+    }
+
+    public Result detach(String fileName, String message) throws IOException {
+        return change("detach", fileName, message);
+    }
+
+    private Result change(String command, String fileName, String message) throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            int latestVersionNum = getLatestVersionNum();
+            Tree manifest = readManifest(latestVersionNum).copy();
+            Change change;
+            try {
+                try (Metrics.Phase phase = Metrics.phase("snapshot")) {
+                    change = applyChange(command, manifest, fileName);
+                }
+                if (change.modified) {
+                    int newVersionNum = writeVersion(latestVersionNum, message != null ? message : change.message, manifest);
+                    publishVersion(newVersionNum);
+                }
+            } catch (IOException e) {
+                recover();
+                statCache.save();
+                return new Result(failureCode(command), failureMessage(command, fileName), e);
+            }
+            statCache.save();
+            return stored(change.code, change.message);
+        }
+    }
+
+    public Result commitAll(String message) throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            int latestVersionNum = getLatestVersionNum();
+            Tree manifest = readManifest(latestVersionNum).copy();
+            List<String> modified = new ArrayList<>();
+            for (Map.Entry<String, FileState> change : workingTreeChanges(manifest).entrySet()) {
+                if (change.getValue() == FileState.MODIFIED) {
+                    modified.add(change.getKey());
+                }
+            }
+            if (modified.isEmpty()) {
+                statCache.save();
+                return new Result(0, "No modified files to commit.");
+            }
+            Manifest.Entry[] committed = new Manifest.Entry[modified.size()];
+            List<ParallelIO.Task> stores = new ArrayList<>(modified.size());
+            for (int i = 0; i < modified.size(); i++) {
+                int index = i;
+                String fileName = modified.get(i);
+                stores.add(() -> committed[index] = storeFile(root.resolve(fileName), manifest.get(fileName)));
+            }
+            List<String> output = new ArrayList<>();
+            try {
+                try (Metrics.Phase phase = Metrics.phase("snapshot")) {
+                    ParallelIO.runAll(stores);
+                }
+                for (int i = 0; i < modified.size(); i++) {
+                    manifest.put(modified.get(i), committed[i]);
+                    statCache.record(modified.get(i), committed[i]);
+                    output.add("File committed successfully. File: " + modified.get(i));
+                }
+                if (message == null) {
+                    message = "Modified files committed successfully. Changes: " + modified.size();
+                }
+                publishVersion(writeVersion(latestVersionNum, message, manifest));
+            } catch (IOException e) {
+                recover();
+                statCache.save();
+                return new Result(52, "Modified files cannot be committed, see ERR for details.", e);
+            }
+            statCache.save();
+            return stored(0, String.join("\n", output));
+        }
+    }
+
+    public Result batch(List<String> operations, boolean combined, String combinedMessage) throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            int baseVersionNum = getLatestVersionNum();
+            int latestVersionNum = baseVersionNum;
+            Tree manifest = readManifest(baseVersionNum).copy();
+            List<String> output = new ArrayList<>();
+            IOException error = null;
+            int code = 0;
+            int changes = 0;
+            try {
+                for (String line : operations) {
+                    String trimmed = line.trim();
+                    if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                        continue;
+                    }
+                    String[] op = splitArguments(trimmed);
+                    if (failureCode(op[0]) == 0) {
+                        code = 1;
+                        output.add("Unknown command " + op[0] + ".");
+                        break;
+                    }
+                    if (op.length < 2) {
+                        code = missingFileCode(op[0]);
+                        output.add("Please specify file to " + op[0] + ".");
+                        break;
+                    }
+                    Change change;
+                    try {
+                        try (Metrics.Phase phase = Metrics.phase("snapshot")) {
+                            change = applyChange(op[0], manifest, op[1]);
+                        }
+                        if (change.modified && !combined) {
+                            latestVersionNum = writeVersion(latestVersionNum, versionMessage(op, change.message), manifest);
+                            manifest = manifest.copy();
+                        }
+                    } catch (IOException e) {
+                        error = e;
+                        code = failureCode(op[0]);
+                        output.add(failureMessage(op[0], op[1]));
+                        break;
+                    }
+                    output.add(change.message);
+                    if (change.code != 0) {
+                        code = change.code;
+                        break;
+                    }
+                    if (change.modified) {
+                        changes++;
+                    }
+                }
+                if (combined && code == 0 && changes > 0) {
+                    String message = combinedMessage != null ? combinedMessage : "Batch applied successfully. Changes: " + changes;
+                    latestVersionNum = writeVersion(latestVersionNum, message, manifest);
+                }
+            } finally {
+                if (latestVersionNum != baseVersionNum) {
+                    publishVersion(latestVersionNum);
+                }
+                statCache.save();
+            }
+            return new Result(code, String.join("\n", output), error);
+        }
+    }
+
+    private Result stored(int code, String message) {
+        return new Result(code, message, null, objectStore.bytesSaved(), objectStore.bytesReused());
+    }
+
+    private static class FileChange {
+        final String fileName;
+        final Manifest.Entry from;
+        final Manifest.Entry to;
+
+        FileChange(String fileName, Manifest.Entry from, Manifest.Entry to) {
+            this.fileName = fileName;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class Change {
+        final int code;
+        final String message;
+        final boolean modified;
+
+        Change(int code, String message, boolean modified) {
+            this.code = code;
+            this.message = message;
+            this.modified = modified;
+        }
+    }
+
+    private Change applyChange(String command, Tree manifest, String fileName) throws IOException {
+        Path file = root.resolve(fileName);
+        switch (command) {
+            case "add":
+                if (manifest.contains(fileName)) {
+                    return new Change(0, "File already added. File: " + fileName, false);
+                }
+                if (!Files.isRegularFile(file)) {
+                    return new Change(21, "File not found. File: " + fileName, false);
+                }
+                Manifest.Entry added = storeFile(file);
+                manifest.put(fileName, added);
+                statCache.record(fileName, added);
+                return new Change(0, "File added successfully. File: " + fileName, true);
+            case "commit":
+                if (!Files.isRegularFile(file)) {
+                    return new Change(51, "File not found. File: " + fileName, false);
+                }
+                if (!manifest.contains(fileName)) {
+                    return new Change(0, "File is not added to gvt. File: " + fileName, false);
+                }
+                Manifest.Entry previous = manifest.get(fileName);
+                if (previous.hash.equals(statCache.cached(fileName, file))) {
+                    return new Change(0, "File not changed, nothing to commit. File: " + fileName, false);
+                }
+                Manifest.Entry committed = storeFile(file, previous);
+                statCache.record(fileName, committed);
+                if (committed.hash.equals(previous.hash)) {
+                    return new Change(0, "File not changed, nothing to commit. File: " + fileName, false);
+                }
+                manifest.put(fileName, committed);
+                return new Change(0, "File committed successfully. File: " + fileName, true);
+            case "detach":
+                if (!manifest.contains(fileName)) {
+                    return new Change(0, "File is not added to gvt. File: " + fileName, false);
+                }
+                manifest.remove(fileName);
+                statCache.forget(fileName);
+                return new Change(0, "File detached successfully. File: " + fileName, true);
+            default:
+                throw new IllegalArgumentException("Unknown change " + command);
+        }
+    }
+
+    private static int failureCode(String command) {
+        switch (command) {
+            case "add":
+                return 22;
+            case "commit":
+                return 52;
+            case "detach":
+                return 31;
+            default:
+                return 0;
+        }
+    }
+
+    private static int missingFileCode(String command) {
+        switch (command) {
+            case "add":
+                return 20;
+            case "commit":
+                return 50;
+            default:
+                return 30;
+        }
+    }
+
+    private static String failureMessage(String command, String fileName) {
+        switch (command) {
+            case "add":
+                return "File cannot be added. See ERR for details. File: " + fileName;
+            case "commit":
+                return "File cannot be committed, see ERR for details. File: " + fileName;
+            default:
+                return "File cannot be detached, see ERR for details. File: " + fileName;
+        }
+    }
+
+    private static String versionMessage(String[] args, String defaultMessage) {
+        if (args.length >= 4 && args[2].equals("-m")) {
+            return String.join(" ", Arrays.asList(args).subList(3, args.length));
+        }
+        return defaultMessage;
+    }
+
+    private static String[] splitArguments(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inArgument = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && quote != '\'' && i + 1 < line.length() && isEscapable(line.charAt(i + 1))) {
+                current.append(line.charAt(++i));
+                inArgument = true;
+            } else if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                inArgument = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inArgument) {
+                    args.add(current.toString());
+                    current.setLength(0);
+                    inArgument = false;
+                }
+            } else {
+                current.append(c);
+                inArgument = true;
+            }
+        }
+        if (inArgument) {
+            args.add(current.toString());
+        }
+        return args.toArray(new String[0]);
+    }
+
+    private static boolean isEscapable(char c) {
+        return c == '\\' || c == '"' || c == '\'' || Character.isWhitespace(c);
+    }
+
+    public CheckoutResult checkout(int versionNum) throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            if (!versionExists(versionNum)) {
+                return new CheckoutResult(60, "Invalid version number: " + versionNum);
+            }
+
+            int activeVersionNum = getActiveVersionNum();
+            Tree targetManifest = readManifest(versionNum);
+            Tree activeManifest = readManifest(activeVersionNum);
+            AtomicInteger written = new AtomicInteger();
+            AtomicInteger skipped = new AtomicInteger();
+            List<String> removed = new ArrayList<>();
+            List<ParallelIO.Task> restores = new ArrayList<>();
+            try (Metrics.Phase phase = Metrics.phase("diff")) {
+                Tree.diff(activeManifest, targetManifest, (fileName, from, entry) -> {
+                    if (entry == null) {
+                        removed.add(fileName);
+                    }
+                });
+                for (String fileName : targetManifest.names()) {
+                    Manifest.Entry entry = targetManifest.get(fileName);
+                    Path dest = root.resolve(fileName);
+                    restores.add(() -> {
+                        if (isUnchanged(fileName, entry, dest)) {
+                            skipped.incrementAndGet();
+                        } else {
+                            restoreFile(entry, dest);
+                            statCache.record(fileName, entry);
+                            written.incrementAndGet();
+                        }
+                    });
+                }
+            }
+            int deleted = 0;
+            try (Metrics.Phase phase = Metrics.phase("delete")) {
+                for (String fileName : removed) {
+                    if (Files.deleteIfExists(root.resolve(fileName))) {
+                        statCache.forget(fileName);
+                        deleted++;
+                    }
+                }
+            }
+            Metrics.count(Metrics.Counter.FILES_DELETED, deleted);
+            try (Metrics.Phase phase = Metrics.phase("restore")) {
+                ParallelIO.runAll(restores);
+            }
+            SafeFiles.writeAtomically(activePath, String.valueOf(versionNum));
+            statCache.save();
+            return new CheckoutResult(0, "Checkout successful for version: " + versionNum,
+                    written.get(), skipped.get(), deleted,
+                    objectStore.copies() > 0 ? objectStore.copyStats() : null,
+                    objectStore.deltasApplied(), TimeUnit.NANOSECONDS.toMillis(objectStore.reconstructionNanos()));
+        }
+    }
+
+    public Status status() throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            int activeVersionNum = getActiveVersionNum();
+            Map<String, FileState> changes = workingTreeChanges(readManifest(activeVersionNum));
+            statCache.save();
+            return new Status(activeVersionNum, changes);
+        }
+    }
+
+    private Map<String, FileState> workingTreeChanges(Tree manifest) throws IOException {
+        List<String> names = new ArrayList<>(manifest.names());
+        FileState[] states = new FileState[names.size()];
+        List<ParallelIO.Task> checks = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            int index = i;
+            String fileName = names.get(i);
+            checks.add(() -> {
+                Metrics.count(Metrics.Counter.FILES_CHECKED, 1);
+                try {
+                    if (!statCache.hash(fileName, root.resolve(fileName)).equals(manifest.get(fileName).hash)) {
+                        states[index] = FileState.MODIFIED;
+                    }
+                } catch (NoSuchFileException e) {
+                    statCache.forget(fileName);
+                    states[index] = FileState.MISSING;
+                }
+            });
+        }
+        try (Metrics.Phase phase = Metrics.phase("scan")) {
+            ParallelIO.runAll(checks);
+        }
+        Map<String, FileState> changes = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (states[i] != null) {
+                changes.put(names.get(i), states[i]);
+            }
+        }
+        return changes;
+    }
+
+    public List<Version> history() throws IOException {
+        return history(Integer.MAX_VALUE);
+    }
+
+    public List<Version> history(int last) throws IOException {
+        List<Version> versions = new ArrayList<>();
+        history(new HistoryQuery(Integer.MAX_VALUE, last, Long.MAX_VALUE, null), versions::add);
+        return versions;
+    }
+
+    public int history(HistoryQuery query, HistoryVisitor visitor) throws IOException {
+        try (RepositoryLock lock = lock(true)) {
+            int latestVersionNum = getLatestVersionNum();
+            int from = Math.min(query.from, latestVersionNum);
+            return visitVersions(IntStream.iterate(from, i -> i >= 0, i -> i - 1).iterator(), latestVersionNum, query, visitor);
+        }
+    }
+
+    public int log(String fileName, HistoryQuery query, HistoryVisitor visitor) throws IOException {
+        try (RepositoryLock lock = lock(true)) {
+            int latestVersionNum = getLatestVersionNum();
+            if (fileIndex.head() == latestVersionNum) {
+                return visitFileVersions(fileName, latestVersionNum, query, visitor);
+            }
+        }
+        try (RepositoryLock lock = lock(false)) {
+            int latestVersionNum = getLatestVersionNum();
+            updateFileIndex(latestVersionNum);
+            return visitFileVersions(fileName, latestVersionNum, query, visitor);
+        }
+    }
+
+    private int visitFileVersions(String fileName, int latestVersionNum, HistoryQuery query,
+                                  HistoryVisitor visitor) throws IOException {
+        int[] versions = fileIndex.versions(fileName, latestVersionNum);
+        int from = Math.min(query.from, latestVersionNum);
+        return visitVersions(IntStream.range(0, versions.length).map(i -> versions[versions.length - 1 - i])
+                .filter(version -> version <= from).iterator(), latestVersionNum, query, visitor);
+    }
+
+    private int visitVersions(PrimitiveIterator.OfInt versions, int latestVersionNum, HistoryQuery query,
+                              HistoryVisitor visitor) throws IOException {
+        boolean inSync = historyLog.isInSync(latestVersionNum);
+        int visited = 0;
+        try (HistoryLog.MessageReader messages = inSync ? historyLog.messages() : null) {
+            while (versions.hasNext() && visited < query.limit) {
+                int i = versions.nextInt();
+                Path msgPath = versionsPath.resolve(String.valueOf(i)).resolve(messageFile);
+                long timestamp = inSync ? historyLog.timestamp(i) : Files.getLastModifiedTime(msgPath).toMillis();
+                if (timestamp >= query.before) {
+                    continue;
+                }
+                String message = inSync ? messages.read(i) : Files.readString(msgPath);
+                if (!query.matches(message)) {
+                    continue;
+                }
+                visited++;
+                if (!visitor.visit(new Version(i, message, timestamp))) {
+                    break;
+                }
+            }
+        }
+        return visited;
+    }
+
+    public Result diff(int fromVersion, int toVersion, DiffVisitor visitor) throws IOException {
+        try (RepositoryLock lock = lock(true)) {
+            if (!versionExists(fromVersion)) {
+                return new Result(60, "Invalid version number: " + fromVersion);
+            }
+            if (!versionExists(toVersion)) {
+                return new Result(60, "Invalid version number: " + toVersion);
+            }
+            List<FileChange> changes = new ArrayList<>();
+            Tree.diff(readManifest(fromVersion), readManifest(toVersion), (fileName, from, to) -> {
+                if (from == null || to == null || !from.hash.equals(to.hash)) {
+                    changes.add(new FileChange(fileName, from, to));
+                }
+            });
+            changes.sort(Comparator.comparing(change -> change.fileName));
+            for (FileChange change : changes) {
+                if (!diffFile(change.fileName, change.from, change.to, null, visitor)) {
+                    break;
+                }
+            }
+            return new Result(0, "");
+        }
+    }
+
+    public Result diff(int fromVersion, DiffVisitor visitor) throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            if (!versionExists(fromVersion)) {
+                return new Result(60, "Invalid version number: " + fromVersion);
+            }
+            Tree manifest = readManifest(fromVersion);
+            for (String fileName : manifest.names()) {
+                Manifest.Entry entry = manifest.get(fileName);
+                Path file = root.resolve(fileName);
+                Metrics.count(Metrics.Counter.FILES_CHECKED, 1);
+                if (!Files.isRegularFile(file)) {
+                    statCache.forget(fileName);
+                } else if (Files.size(file) == entry.size && statCache.hash(fileName, file).equals(entry.hash)) {
+                    continue;
+                }
+                if (!diffFile(fileName, entry, null, file, visitor)) {
+                    break;
+                }
+            }
+            statCache.save();
+            return new Result(0, "");
+        }
+    }
+
+    public Version version() throws IOException {
+        try (RepositoryLock lock = lock(true)) {
+            return readVersion(getActiveVersionNum());
+        }
+    }
+
+    public Version version(int versionNum) throws IOException {
+        try (RepositoryLock lock = lock(true)) {
+            if (!versionExists(versionNum)) {
+                return null;
+            }
+            return readVersion(versionNum);
+        }
+    }
+
+    public Stats stats() throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            int latestVersionNum = getLatestVersionNum();
+            long logicalBytes = 0;
+            Map<String, Long> treeSizes = new HashMap<>();
+            Map<String, Long> contents = new HashMap<>();
+            Set<String> visitedTrees = new HashSet<>();
+            for (int i = 0; i <= latestVersionNum; i++) {
+                Tree manifest = readManifest(i);
+                logicalBytes += manifest.logicalSize(treeSizes);
+                manifest.collectContents(contents, visitedTrees);
+            }
+            long uniqueBytes = 0;
+            for (long size : contents.values()) {
+                uniqueBytes += size;
+            }
+            return new Stats(latestVersionNum + 1, logicalBytes, contents.size(), uniqueBytes, objectStore.storedBytes());
+        }
+    }
+
+    public Result gc() throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            int latestVersionNum = getLatestVersionNum();
+            if (!historyLog.isInSync(latestVersionNum)) {
+                rebuildHistory(latestVersionNum);
+            }
+            for (int i = 0; i <= latestVersionNum; i++) {
+                Path versionPath = versionsPath.resolve(String.valueOf(i));
+                if (Files.isDirectory(versionPath) && !legacyCopies(versionPath).isEmpty()) {
+                    return new Result(90, "Version directory " + i + " contains files that are not in its manifest. "
+                            + "Garbage collection aborted.");
+                }
+            }
+            Set<String> roots = new HashSet<>();
+            for (int i = 0; i <= latestVersionNum; i++) {
+                readManifest(i).collectObjects(roots);
+            }
+            int[] packed;
+            try (Metrics.Phase phase = Metrics.phase("pack")) {
+                packed = objectStore.pack(roots);
+            }
+            int removed = 0;
+            for (int i = 0; i <= latestVersionNum; i++) {
+                Path versionPath = versionsPath.resolve(String.valueOf(i));
+                if (Files.isDirectory(versionPath)) {
+                    SafeFiles.deleteRecursively(versionPath);
+                    removed++;
+                }
+            }
+            SafeFiles.syncDirectory(versionsPath);
+            return new Result(0, "Garbage collection finished. Objects packed: " + packed[0] + ", pruned: " + packed[1]
+                    + ", version directories removed: " + removed);
+        }
+    }
+
+    public Result rebuild() throws IOException {
+        try (RepositoryLock lock = lock(false)) {
+            int latestVersionNum = getLatestVersionNum();
+            if (historyLog.logLength() > 0) {
+                historyLog.rebuildIndex();
+            }
+            rebuildHistory(latestVersionNum);
+            fileIndex.clear();
+            updateFileIndex(latestVersionNum);
+            return new Result(0, "History rebuilt successfully. Versions: " + (latestVersionNum + 1));
+        }
+    }
+
+    private static class ObjectCheck {
+        final String hash;
+        final String label;
+        final boolean optional;
+
+        ObjectCheck(String hash, String label, boolean optional) {
+            this.hash = hash;
+            this.label = label;
+            this.optional = optional;
+        }
+    }
+
+    public Result fsck() throws IOException {
+        try (RepositoryLock lock = lock(true)) {
+            List<String> problems = new ArrayList<>();
+            int highestVersionDir = -1;
+            List<String> strayDirectories = new ArrayList<>();
+            try (DirectoryStream<Path> directories = Files.newDirectoryStream(versionsPath)) {
+                for (Path directory : directories) {
+                    String name = directory.getFileName().toString();
+                    try {
+                        highestVersionDir = Math.max(highestVersionDir, Integer.parseInt(name));
+                    } catch (NumberFormatException e) {
+                        strayDirectories.add(name);
+                    }
+                }
+            }
+            int latestVersionNum = readPointer(latestPath, problems);
+            if (latestVersionNum < 0) {
+                latestVersionNum = Math.max(historyLog.size() - 1, highestVersionDir);
+            }
+            int activeVersionNum = readPointer(activePath, problems);
+            if (activeVersionNum > latestVersionNum) {
+                problems.add("Invalid active pointer: " + activeVersionNum + " is past latest version " + latestVersionNum);
+            }
+            if (!historyLog.isInSync(latestVersionNum)) {
+                problems.add("History log is out of sync with latest version " + latestVersionNum);
+            }
+            for (int i = latestVersionNum + 1; i <= highestVersionDir; i++) {
+                if (Files.exists(versionsPath.resolve(String.valueOf(i)))) {
+                    strayDirectories.add(String.valueOf(i));
+                }
+            }
+            for (String name : strayDirectories) {
+                problems.add("Unexpected version directory " + name);
+            }
+
+            int logged = historyLog.size();
+            List<List<String>> versionProblems = new ArrayList<>();
+            boolean[] broken = new boolean[latestVersionNum + 1];
+            List<ParallelIO.Task> checks = new ArrayList<>();
+            for (int i = 0; i <= latestVersionNum; i++) {
+                int versionNum = i;
+                List<String> found = new ArrayList<>();
+                versionProblems.add(found);
+                checks.add(() -> broken[versionNum] = !checkVersion(versionNum, versionNum < logged, found));
+            }
+            try (Metrics.Phase phase = Metrics.phase("check")) {
+                ParallelIO.runAll(checks);
+            }
+            for (List<String> found : versionProblems) {
+                problems.addAll(found);
+            }
+
+            Set<String> seen = new HashSet<>();
+            List<ObjectCheck> batch = new ArrayList<>();
+            int verified = 0;
+            for (int i = 0; i <= latestVersionNum; i++) {
+                if (broken[i]) {
+                    continue;
+                }
+                int versionNum = i;
+                Path manifestPath = versionsPath.resolve(String.valueOf(i)).resolve(manifestFile);
+                boolean hasDirectory = Files.isDirectory(manifestPath.getParent());
+                try {
+                    Tree manifest = hasDirectory
+                            ? Tree.parse(objectStore, Files.readAllBytes(manifestPath), manifestPath.toString())
+                            : Tree.load(objectStore, historyLog.manifestHash(i));
+                    manifest.collectObjects(seen, (hash, path) -> batch.add(path.isEmpty()
+                            ? new ObjectCheck(hash, "root tree of version " + versionNum, hasDirectory)
+                            : new ObjectCheck(hash, path + " in version " + versionNum, false)));
+                } catch (IOException e) {
+                    problems.add("Corrupt manifest for version " + i + ": " + e.getMessage());
+                }
+                if (batch.size() >= fsckBatch) {
+                    verified += verifyObjects(batch, problems);
+                    batch.clear();
+                }
+            }
+            verified += verifyObjects(batch, problems);
+
+            String summary = "Versions: " + (latestVersionNum + 1) + ", objects verified: " + verified + ".";
+            if (problems.isEmpty()) {
+                return new Result(0, "Repository is consistent. " + summary);
+            }
+            return new Result(80, String.join("\n", problems) + "\nRepository check found " + problems.size()
+                    + " problem(s). " + summary);
+        }
+    }
+
+    private int readPointer(Path pointer, List<String> problems) {
+        String name = pointer.getFileName().toString();
+        try {
+            int versionNum = Integer.parseInt(Files.readString(pointer).trim());
+            if (versionNum >= 0) {
+                return versionNum;
+            }
+            problems.add("Invalid " + name + " pointer: " + versionNum);
+        } catch (NumberFormatException e) {
+            problems.add("Invalid " + name + " pointer: " + e.getMessage());
+        } catch (IOException e) {
+            problems.add("Unreadable " + name + " pointer: " + e);
+        }
+        return -1;
+    }
+
+    private boolean checkVersion(int versionNum, boolean logged, List<String> problems) {
+        Path versionPath = versionsPath.resolve(String.valueOf(versionNum));
+        if (!Files.isDirectory(versionPath)) {
+            if (!logged) {
+                problems.add("Missing version " + versionNum);
+                return false;
+            }
+            return true;
+        }
+        try {
+            Path msgPath = versionPath.resolve(messageFile);
+            if (!Files.isRegularFile(msgPath)) {
+                problems.add("Missing message file for version " + versionNum);
+            } else if (logged && !Files.readString(msgPath).equals(historyLog.message(versionNum))) {
+                problems.add("Message file of version " + versionNum + " differs from history log");
+            }
+            Path manifestPath = versionPath.resolve(manifestFile);
+            if (!Files.isRegularFile(manifestPath)) {
+                try (Stream<Path> files = Files.list(versionPath)) {
+                    if (files.noneMatch(file -> Files.isRegularFile(file) && !file.equals(msgPath))) {
+                        problems.add("Missing manifest for version " + versionNum);
+                    }
+                }
+                return false;
+            }
+            byte[] content = Files.readAllBytes(manifestPath);
+            if (logged && !ObjectStore.hash(content).equals(historyLog.manifestHash(versionNum))) {
+                problems.add("Manifest of version " + versionNum + " differs from history log");
+            }
+            Tree.parse(objectStore, content, manifestPath.toString());
+            return true;
+        } catch (IOException e) {
+            problems.add("Corrupt version " + versionNum + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private int verifyObjects(List<ObjectCheck> checks, List<String> problems) throws IOException {
+        String[] found = new String[checks.size()];
+        List<ParallelIO.Task> tasks = new ArrayList<>(checks.size());
+        for (int i = 0; i < checks.size(); i++) {
+            int index = i;
+            ObjectCheck check = checks.get(i);
+            tasks.add(() -> {
+                try {
+                    if (!objectStore.contains(check.hash)) {
+                        if (!check.optional) {
+                            found[index] = "Missing object " + check.hash + " (" + check.label + ")";
+                        }
+                        return;
+                    }
+                    String checksum = objectStore.checksum(check.hash);
+                    if (!checksum.equals(check.hash)) {
+                        found[index] = "Corrupt object " + check.hash + " (" + check.label + "): checksum " + checksum;
+                    }
+                } catch (IOException e) {
+                    found[index] = "Unreadable object " + check.hash + " (" + check.label + "): " + e.getMessage();
+                }
+            });
+        }
+        try (Metrics.Phase phase = Metrics.phase("verify")) {
+            ParallelIO.runAll(tasks);
+        }
+        for (String problem : found) {
+            if (problem != null) {
+                problems.add(problem);
+            }
+        }
+        return checks.size();
+    }
+
+    boolean metricsEnabled() {
+        return metricsEnabled;
+    }
+
+    void recordMetrics(Map<String, Long> totals) throws IOException {
+        try (FileChannel channel = FileChannel.open(gvtPath.resolve(MetricsFile), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileLock fileLock = channel.lock()) {
+            Properties recorded = new Properties();
+            recorded.load(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            SortedMap<String, Long> merged = new TreeMap<>(totals);
+            for (String key : recorded.stringPropertyNames()) {
+                try {
+                    merged.merge(key, Long.parseLong(recorded.getProperty(key).trim()), Long::sum);
+                } catch (NumberFormatException e) {
+                    // a damaged entry restarts from this run's value
+                }
+            }
+            StringBuilder content = new StringBuilder();
+            for (Map.Entry<String, Long> total : merged.entrySet()) {
+                content.append(total.getKey()).append('=').append(total.getValue()).append('\n');
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            channel.truncate(0);
+            channel.position(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private RepositoryLock lock(boolean readOnly) throws IOException {
+        RepositoryLock lock = lockRepository(readOnly);
+        try {
+            objectStore.resetStats();
+            objectStore.refreshPacks();
+            statCache.refresh();
+            loadConfig();
+            recover();
+            historyLog.refresh();
+            if (!historyLog.exists()) {
+                rebuildHistory(getLatestVersionNum());
+            }
+            if (!readOnly) {
+                Files.deleteIfExists(gvtPath.resolve(LegacyHistoryIndexFile));
+            }
+        } catch (IOException e) {
+            lock.close();
+            throw e;
+        }
+        return lock;
+    }
+
+    private RepositoryLock lockRepository(boolean readOnly) throws IOException {
+        Path lockPath = gvtPath.resolve(LockFile);
+        if (readOnly) {
+            RepositoryLock lock = RepositoryLock.acquire(lockPath, true);
+            if (!Files.exists(journalPath) && historyLog.exists()) {
+                return lock;
+            }
+            lock.close();
+        }
+        return RepositoryLock.acquire(lockPath, false);
+    }
+
+    private Properties readConfig() throws IOException {
+        Properties config = new Properties();
+        Path configPath = gvtPath.resolve(ConfigFile);
+        if (Files.exists(configPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(configPath, StandardCharsets.UTF_8)) {
+                config.load(reader);
+            }
+        }
+        return config;
+    }
+
+    private boolean versionExists(int versionNum) throws IOException {
+        return versionNum >= 0 && versionNum <= getLatestVersionNum();
+    }
+
+    private int getLatestVersionNum() throws IOException {
+        String content = Files.readString(latestPath).trim();
+        return Integer.parseInt(content);
+    }
+
+    private int getActiveVersionNum() throws IOException {
+        return Integer.parseInt(Files.readString(activePath).trim());
+    }
+
+    private int writeVersion(int prevVersion, String message, Tree manifest) throws IOException {
+        try (Metrics.Phase phase = Metrics.phase("write-version")) {
+            return writeVersionInternal(prevVersion, message, manifest);
+        }
+    }
+
+    private int writeVersionInternal(int prevVersion, String message, Tree manifest) throws IOException {
+
+        int newVersionNum = prevVersion + 1;
+        Path newVersionPath = versionsPath.resolve(String.valueOf(newVersionNum));
+        Path stagingPath = versionsPath.resolve(stagingPrefix + newVersionNum);
+        if (!Files.exists(journalPath)) {
+            if (!historyLog.isInSync(prevVersion)) {
+                rebuildHistory(prevVersion);
+            }
+            SafeFiles.writeAtomically(journalPath,
+                    prevVersion + " " + historyLog.logLength() + " " + historyLog.indexLength());
+        }
+        SafeFiles.deleteRecursively(stagingPath);
+        SafeFiles.deleteRecursively(newVersionPath);
+
+        String manifestHash = manifest.store();
+        Files.createDirectory(stagingPath);
+        Files.writeString(stagingPath.resolve(messageFile), message);
+        Files.write(stagingPath.resolve(manifestFile), manifest.serialize());
+        SafeFiles.sync(stagingPath.resolve(messageFile));
+        SafeFiles.sync(stagingPath.resolve(manifestFile));
+        historyLog.append(new HistoryLog.Record(newVersionNum, prevVersion, System.currentTimeMillis(), manifestHash, message));
+        Files.move(stagingPath, newVersionPath, StandardCopyOption.ATOMIC_MOVE);
+        SafeFiles.syncDirectory(versionsPath);
+        manifestCache.put(newVersionNum, manifest);
+        updateFileIndex(prevVersion);
+        Map<String, List<Integer>> changes = new HashMap<>();
+        collectFileChanges(newVersionNum, manifest, changes);
+        fileIndex.append(changes, newVersionNum);
+
+        return newVersionNum;
+    }
+
+    private void publishVersion(int versionNum) throws IOException {
+        SafeFiles.writeAtomically(latestPath, String.valueOf(versionNum));
+        SafeFiles.writeAtomically(activePath, String.valueOf(versionNum));
+        Files.deleteIfExists(journalPath);
+    }
+
+    private void recover() throws IOException {
+        if (!Files.exists(journalPath)) {
+            return;
+        }
+        String[] journal = Files.readString(journalPath).trim().split(" ");
+        int baseVersion = Integer.parseInt(journal[0]);
+        int latestVersionNum = getLatestVersionNum();
+        if (latestVersionNum > baseVersion) {
+            SafeFiles.writeAtomically(activePath, String.valueOf(latestVersionNum));
+        } else {
+            historyLog.truncate(Long.parseLong(journal[1]), Long.parseLong(journal[2]));
+            fileIndex.clear();
+            for (int i = baseVersion + 1; ; i++) {
+                Path versionPath = versionsPath.resolve(String.valueOf(i));
+                Path stagingPath = versionsPath.resolve(stagingPrefix + i);
+                if (!Files.exists(versionPath) && !Files.exists(stagingPath)) {
+                    break;
+                }
+                SafeFiles.deleteRecursively(versionPath);
+                SafeFiles.deleteRecursively(stagingPath);
+                manifestCache.remove(i);
+            }
+        }
+        Files.delete(journalPath);
+    }
+
+    private Version readVersion(int versionNum) throws IOException {
+        if (historyLog.isInSync(getLatestVersionNum())) {
+            return new Version(versionNum, historyLog.message(versionNum), historyLog.timestamp(versionNum));
+        }
+        Path msgPath = versionsPath.resolve(String.valueOf(versionNum)).resolve(messageFile);
+        return new Version(versionNum, Files.readString(msgPath), Files.getLastModifiedTime(msgPath).toMillis());
+    }
+
+    private void rebuildHistory(int latestVersionNum) throws IOException {
+        List<HistoryLog.Record> records = new ArrayList<>();
+        for (int i = 0; i <= latestVersionNum; i++) {
+            Path versionPath = versionsPath.resolve(String.valueOf(i));
+            Path msgPath = versionPath.resolve(messageFile);
+            if (!Files.isDirectory(versionPath)) {
+                records.add(historyLog.read(i));
+                continue;
+            }
+            if (!Files.exists(versionPath.resolve(manifestFile))) {
+                migrateLegacyVersion(versionPath);
+            }
+            String manifestHash = objectStore.store(versionPath.resolve(manifestFile));
+            long timestamp = Files.getLastModifiedTime(msgPath).toMillis();
+            records.add(new HistoryLog.Record(i, i - 1, timestamp, manifestHash, Files.readString(msgPath)));
+        }
+        historyLog.rebuild(records);
+    }
+
+    private void updateFileIndex(int latestVersionNum) throws IOException {
+        int head = fileIndex.head();
+        if (head == latestVersionNum) {
+            return;
+        }
+        try (Metrics.Phase phase = Metrics.phase("index")) {
+            if (head < 0 || head > latestVersionNum) {
+                fileIndex.clear();
+                head = -1;
+            }
+            Map<String, List<Integer>> changes = new HashMap<>();
+            for (int i = head + 1; i <= latestVersionNum; i++) {
+                collectFileChanges(i, readManifest(i), changes);
+                if (i == latestVersionNum || (i - head) % fileIndexBatch == 0) {
+                    fileIndex.append(changes, i);
+                    changes.clear();
+                }
+            }
+        }
+    }
+
+    private void collectFileChanges(int versionNum, Tree manifest, Map<String, List<Integer>> changes) throws IOException {
+        if (versionNum == 0) {
+            return;
+        }
+        Tree.diff(readManifest(versionNum - 1), manifest, (fileName, from, to) -> {
+            if (from == null || to == null || !from.hash.equals(to.hash)) {
+                changes.computeIfAbsent(fileName, name -> new ArrayList<>()).add(versionNum);
+            }
+        });
+    }
+
+    private Tree readManifest(int versionNum) throws IOException {
+        Tree cached = manifestCache.get(versionNum);
+        if (cached != null) {
+            return cached;
+        }
+        Path versionPath = versionsPath.resolve(String.valueOf(versionNum));
+        Path manifestPath = versionPath.resolve(manifestFile);
+        Tree manifest;
+        if (!Files.isDirectory(versionPath)) {
+            manifest = Tree.load(objectStore, historyLog.manifestHash(versionNum));
+        } else {
+            manifest = Tree.parse(objectStore, Files.readAllBytes(manifestPath), manifestPath.toString());
+        }
+        manifestCache.put(versionNum, manifest);
+        return manifest;
+    }
+
+    private void migrateLegacyVersion(Path versionPath) throws IOException {
+        Path tempManifest = versionPath.resolve(manifestFile + ".tmp");
+        Files.deleteIfExists(tempManifest);
+        Manifest manifest = new Manifest();
+        List<Path> legacyCopies = legacyCopies(versionPath);
+        List<ParallelIO.Task> stores = new ArrayList<>();
+        for (Path legacyCopy : legacyCopies) {
+            String fileName = legacyName(versionPath, legacyCopy);
+            stores.add(() -> {
+                Manifest.Entry entry = new Manifest.Entry(objectStore.store(legacyCopy, true),
+                        Files.size(legacyCopy), Files.getLastModifiedTime(legacyCopy).to(TimeUnit.NANOSECONDS));
+                synchronized (manifest) {
+                    manifest.put(fileName, entry);
+                }
+            });
+        }
+        ParallelIO.runAll(stores);
+        manifest.write(tempManifest);
+        Files.move(tempManifest, versionPath.resolve(manifestFile), StandardCopyOption.ATOMIC_MOVE);
+        for (Path legacyCopy : legacyCopies) {
+            Files.deleteIfExists(legacyCopy);
+        }
+        try (Stream<Path> paths = Files.walk(versionPath)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                if (!path.equals(versionPath) && Files.isDirectory(path)) {
+                    try (Stream<Path> entries = Files.list(path)) {
+                        if (entries.findAny().isEmpty()) {
+                            Files.delete(path);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Path> legacyCopies(Path versionPath) throws IOException {
+        try (Stream<Path> paths = Files.walk(versionPath)) {
+            return paths.filter(path -> Files.isRegularFile(path) && !(path.getParent().equals(versionPath)
+                            && (path.endsWith(messageFile) || path.endsWith(manifestFile))))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static String legacyName(Path versionPath, Path legacyCopy) {
+        return versionPath.relativize(legacyCopy).toString().replace(File.separatorChar, '/');
+    }
+
+    private boolean diffFile(String fileName, Manifest.Entry from, Manifest.Entry to, Path workingFile,
+                             DiffVisitor visitor) throws IOException {
+        List<Path> temporary = new ArrayList<>();
+        try {
+            Path before = from != null ? contentPath(from, temporary) : null;
+            Path after = to != null ? contentPath(to, temporary) : workingFile;
+            if (after != null && !Files.isRegularFile(after)) {
+                after = null;
+            }
+            MappedText beforeText = before != null ? MappedText.map(before) : MappedText.empty();
+            MappedText afterText = after != null ? MappedText.map(after) : MappedText.empty();
+            return TextDiff.write(beforeText, afterText, before != null ? "a/" + fileName : "/dev/null",
+                    after != null ? "b/" + fileName : "/dev/null", visitor::visit);
+        } finally {
+            for (Path path : temporary) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private Path contentPath(Manifest.Entry entry, List<Path> temporary) throws IOException {
+        Path plain = objectStore.plainPath(entry.hash);
+        if (plain != null) {
+            return plain;
+        }
+        Path temp = Files.createTempFile(gvtPath, "diff", ".tmp");
+        temporary.add(temp);
+        objectStore.restore(entry.hash, temp);
+        return temp;
+    }
+
+    private Manifest.Entry storeFile(Path source) throws IOException {
+        long size = Files.size(source);
+        long mtime = Files.getLastModifiedTime(source).to(TimeUnit.NANOSECONDS);
+        String hash = objectStore.store(source);
+        Metrics.count(Metrics.Counter.FILES_READ, 1);
+        Metrics.count(Metrics.Counter.BYTES_READ, size);
+        return new Manifest.Entry(hash, size, mtime);
+    }
+
+    private Manifest.Entry storeFile(Path source, Manifest.Entry previous) throws IOException {
+        long size = Files.size(source);
+        long mtime = Files.getLastModifiedTime(source).to(TimeUnit.NANOSECONDS);
+        String hash = objectStore.storeDelta(source, previous.hash, previous.size);
+        Metrics.count(Metrics.Counter.FILES_READ, 1);
+        Metrics.count(Metrics.Counter.BYTES_READ, size);
+        return new Manifest.Entry(hash, size, mtime);
+    }
+
+    private void restoreFile(Manifest.Entry entry, Path dest) throws IOException {
+        if (dest.getParent() != null) {
+            Files.createDirectories(dest.getParent());
+        }
+        objectStore.restore(entry.hash, dest);
+        Files.setLastModifiedTime(dest, FileTime.from(entry.mtime, TimeUnit.NANOSECONDS));
+        Metrics.count(Metrics.Counter.FILES_WRITTEN, 1);
+        Metrics.count(Metrics.Counter.BYTES_WRITTEN, entry.size);
+    }
+
+    private boolean isUnchanged(String fileName, Manifest.Entry entry, Path file) throws IOException {
+        Metrics.count(Metrics.Counter.FILES_CHECKED, 1);
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attributes.size() != entry.size) {
+            return false;
+        }
+        if (attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) == entry.mtime) {
+            return true;
+        }
+        return statCache.hash(fileName, file).equals(entry.hash);
+    }
+}
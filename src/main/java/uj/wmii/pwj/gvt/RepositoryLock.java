@@ -0,0 +1,137 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+class RepositoryLock implements AutoCloseable {
+
+    static class TimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TimeoutException(Path lockPath) {
+            super("Timed out waiting for repository lock " + lockPath);
+        }
+    }
+
+    private static class SharedState {
+        final ReentrantReadWriteLock threads = new ReentrantReadWriteLock();
+        int readers;
+        FileChannel channel;
+        FileLock fileLock;
+    }
+
+    private static Map<Path, SharedState> states = new ConcurrentHashMap<>();
+    private static long timeoutMillis = Long.getLong("gvt.lock.timeout", 30_000L);
+    private static long minBackoffMillis = 5;
+    private static long maxBackoffMillis = 200;
+
+    private final SharedState state;
+    private final boolean shared;
+    private boolean released;
+
+    private RepositoryLock(SharedState state, boolean shared) {
+        this.state = state;
+        this.shared = shared;
+    }
+
+    static RepositoryLock acquire(Path lockPath, boolean shared) throws IOException {
+        Path key = lockPath.toAbsolutePath().normalize();
+        SharedState state = states.computeIfAbsent(key, k -> new SharedState());
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        Lock threadLock = shared ? state.threads.readLock() : state.threads.writeLock();
+        try {
+            if (!threadLock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException(lockPath);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException(lockPath);
+        }
+        try {
+            synchronized (state) {
+                if (!shared || state.readers == 0) {
+                    lockFile(state, key, shared, deadline);
+                }
+                if (shared) {
+                    state.readers++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            threadLock.unlock();
+            throw e;
+        }
+        return new RepositoryLock(state, shared);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (released) {
+            return;
+        }
+        released = true;
+        try {
+            synchronized (state) {
+                if (!shared || --state.readers == 0) {
+                    unlockFile(state);
+                }
+            }
+        } finally {
+            if (shared) {
+                state.threads.readLock().unlock();
+            } else {
+                state.threads.writeLock().unlock();
+            }
+        }
+    }
+
+    private static void lockFile(SharedState state, Path lockPath, boolean shared, long deadline) throws IOException {
+        FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long backoff = minBackoffMillis;
+        try {
+            while (true) {
+                FileLock fileLock = channel.tryLock(0, Long.MAX_VALUE, shared);
+                if (fileLock != null) {
+                    state.channel = channel;
+                    state.fileLock = fileLock;
+                    return;
+                }
+                if (System.currentTimeMillis() + backoff > deadline) {
+                    throw new TimeoutException(lockPath);
+                }
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, maxBackoffMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            channel.close();
+            throw new TimeoutException(lockPath);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void unlockFile(SharedState state) throws IOException {
+        try {
+            if (state.fileLock != null) {
+                state.fileLock.release();
+            }
+        } finally {
+            state.fileLock = null;
+            if (state.channel != null) {
+                state.channel.close();
+                state.channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+class SafeFiles {
+
+    private static boolean fsyncEnabled = !"false".equals(System.getProperty("gvt.fsync"));
+
+    private SafeFiles() {
+    }
+
+    static void setFsyncEnabled(boolean enabled) {
+        fsyncEnabled = enabled;
+    }
+
+    static void writeAtomically(Path target, String content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            sync(channel);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(target.toAbsolutePath().getParent());
+    }
+
+    static void sync(Path file) throws IOException {
+        if (!fsyncEnabled) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Metrics.count(Metrics.Counter.FSYNCS, 1);
+    }
+
+    static void sync(FileChannel channel) throws IOException {
+        if (fsyncEnabled) {
+            channel.force(true);
+            Metrics.count(Metrics.Counter.FSYNCS, 1);
+        }
+    }
+
+    static void syncDirectory(Path directory) {
+        if (!fsyncEnabled) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+            Metrics.count(Metrics.Counter.FSYNCS, 1);
+        } catch (IOException e) {
+            // not every platform allows opening a directory, the rename is still atomic there
+        }
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
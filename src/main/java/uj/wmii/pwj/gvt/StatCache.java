@@ -0,0 +1,108 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+class StatCache {
+
+    private static long racyWindowNanos = TimeUnit.SECONDS.toNanos(2);
+
+    private final Path indexPath;
+    private Manifest entries = new Manifest();
+    private boolean dirty;
+    private BasicFileAttributes loaded;
+
+    StatCache(Path indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    synchronized void load() throws IOException {
+        loaded = attributes();
+        try {
+            entries = Manifest.read(indexPath);
+        } catch (NoSuchFileException e) {
+            entries = new Manifest();
+        }
+        dirty = false;
+    }
+
+    synchronized void refresh() throws IOException {
+        BasicFileAttributes current = attributes();
+        if (current == null ? loaded != null : loaded == null || current.size() != loaded.size()
+                || !current.lastModifiedTime().equals(loaded.lastModifiedTime())
+                || !Objects.equals(current.fileKey(), loaded.fileKey())) {
+            load();
+        }
+    }
+
+    String cached(String name, Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return cached(name, attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+    }
+
+    String hash(String name, Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attributes.size();
+        long mtime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        String hash = cached(name, size, mtime);
+        if (hash == null) {
+            hash = ObjectStore.hash(file);
+            Metrics.count(Metrics.Counter.FILES_HASHED, 1);
+            record(name, new Manifest.Entry(hash, size, mtime));
+        }
+        return hash;
+    }
+
+    synchronized void record(String name, Manifest.Entry entry) {
+        if (isRacy(entry.mtime)) {
+            forget(name);
+            return;
+        }
+        entries.put(name, entry);
+        dirty = true;
+    }
+
+    synchronized void forget(String name) {
+        if (entries.contains(name)) {
+            entries.remove(name);
+            dirty = true;
+        }
+    }
+
+    synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        entries.write(temp);
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        loaded = attributes();
+        dirty = false;
+    }
+
+    private BasicFileAttributes attributes() throws IOException {
+        try {
+            return Files.readAttributes(indexPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private synchronized String cached(String name, long size, long mtime) {
+        Manifest.Entry entry = entries.get(name);
+        if (entry != null && entry.size == size && entry.mtime == mtime) {
+            return entry.hash;
+        }
+        return null;
+    }
+
+    private static boolean isRacy(long mtime) {
+        return mtime >= TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - racyWindowNanos;
+    }
+}
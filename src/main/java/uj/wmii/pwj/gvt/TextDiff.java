@@ -0,0 +1,386 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class TextDiff {
+
+    interface Output {
+        boolean line(String line) throws IOException;
+    }
+
+    private static int contextLines = 3;
+    private static int syncLines = 16;
+    private static int initialWindow = 16 * 1024;
+    private static int maxWindow = 1024 * 1024;
+    private static long costLimit = 1L << 30;
+    private static String noNewline = "\\ No newline at end of file";
+
+    private static class Lines {
+        private final MappedText text;
+        private long[] starts = new long[64];
+        private int[] hashes = new int[64];
+        private int count;
+        private long end;
+
+        Lines(MappedText text, long start, int limit) {
+            this.text = text;
+            long position = start;
+            while (position < text.size() && count < limit) {
+                long next = text.lineEnd(position);
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    hashes = Arrays.copyOf(hashes, count * 2);
+                }
+                starts[count] = position;
+                hashes[count] = text.hash(position, next);
+                count++;
+                position = next;
+            }
+            this.end = position;
+        }
+
+        long start(int line) {
+            return line < count ? starts[line] : end;
+        }
+
+        boolean atEnd() {
+            return end == text.size();
+        }
+    }
+
+    private static class Block {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Block(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    private static class Segment {
+        final char marker;
+        final MappedText text;
+        final long start;
+        final long end;
+
+        Segment(char marker, MappedText text, long start, long end) {
+            this.marker = marker;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Hunk {
+        final long aStart;
+        final long bStart;
+        long aCount;
+        long bCount;
+        long aLineEnd;
+        long aPositionEnd;
+        final List<Segment> segments = new ArrayList<>();
+
+        Hunk(long aStart, long bStart) {
+            this.aStart = aStart;
+            this.bStart = bStart;
+        }
+
+        void add(char marker, MappedText text, long start, long end, long lines) {
+            if (lines == 0) {
+                return;
+            }
+            segments.add(new Segment(marker, text, start, end));
+            if (marker != '+') {
+                aCount += lines;
+            }
+            if (marker != '-') {
+                bCount += lines;
+            }
+        }
+    }
+
+    private final MappedText a;
+    private final MappedText b;
+    private final String aLabel;
+    private final String bLabel;
+    private final Output out;
+    private Lines aLines;
+    private Lines bLines;
+    private boolean[] deleted;
+    private boolean[] inserted;
+    private Hunk hunk;
+    private boolean headerWritten;
+
+    private TextDiff(MappedText a, MappedText b, String aLabel, String bLabel, Output out) {
+        this.a = a;
+        this.b = b;
+        this.aLabel = aLabel;
+        this.bLabel = bLabel;
+        this.out = out;
+    }
+
+    static boolean write(MappedText a, MappedText b, String aLabel, String bLabel, Output out) throws IOException {
+        if (a.size() == b.size() && MappedText.commonPrefix(a, 0, b, 0) == a.size()) {
+            return true;
+        }
+        if (a.isBinary() || b.isBinary()) {
+            return out.line("Binary files " + aLabel + " and " + bLabel + " differ");
+        }
+        return new TextDiff(a, b, aLabel, bLabel, out).run();
+    }
+
+    private boolean run() throws IOException {
+        long aPosition = 0;
+        long bPosition = 0;
+        long aLine = 0;
+        long bLine = 0;
+        while (aPosition < a.size() || bPosition < b.size()) {
+            long equalEnd = aPosition + MappedText.commonPrefix(a, aPosition, b, bPosition);
+            if (equalEnd < a.size() || bPosition + (equalEnd - aPosition) < b.size()) {
+                equalEnd = Math.max(aPosition, a.lineStart(equalEnd));
+            }
+            long skipped = a.countLines(aPosition, equalEnd);
+            aLine += skipped;
+            bLine += skipped;
+            bPosition += equalEnd - aPosition;
+            aPosition = equalEnd;
+            if (aPosition == a.size() && bPosition == b.size()) {
+                break;
+            }
+            List<Block> blocks = null;
+            int settled = 0;
+            for (int window = initialWindow; settled == 0; window *= 4) {
+                aLines = new Lines(a, aPosition, window);
+                bLines = new Lines(b, bPosition, window);
+                deleted = new boolean[aLines.count];
+                inserted = new boolean[bLines.count];
+                compare(0, aLines.count, 0, bLines.count);
+                blocks = blocks();
+                if ((aLines.atEnd() && bLines.atEnd()) || aLines.count == 0 || bLines.count == 0 || window >= maxWindow) {
+                    settled = blocks.size();
+                    break;
+                }
+                settled = settledBlocks(blocks);
+            }
+            if (blocks.isEmpty()) {
+                aLine += aLines.count;
+                bLine += bLines.count;
+                aPosition = aLines.end;
+                bPosition = bLines.end;
+                continue;
+            }
+            for (int i = 0; i < settled; i++) {
+                Block block = blocks.get(i);
+                if (!change(aLine + block.aStart, aLines.start(block.aStart), aLines.start(block.aEnd), block.aEnd - block.aStart,
+                        bLine + block.bStart, bLines.start(block.bStart), bLines.start(block.bEnd), block.bEnd - block.bStart)) {
+                    return false;
+                }
+            }
+            Block last = blocks.get(settled - 1);
+            aLine += last.aEnd;
+            bLine += last.bEnd;
+            aPosition = aLines.start(last.aEnd);
+            bPosition = bLines.start(last.bEnd);
+        }
+        return hunk == null || flush();
+    }
+
+    private int settledBlocks(List<Block> blocks) {
+        for (int k = blocks.size() - 1; k >= 0; k--) {
+            int runEnd = k + 1 < blocks.size() ? blocks.get(k + 1).aStart : aLines.count;
+            if (runEnd - blocks.get(k).aEnd >= syncLines) {
+                return k + 1;
+            }
+        }
+        return 0;
+    }
+
+    private boolean change(long aLine, long aStart, long aEnd, long aCount,
+                           long bLine, long bStart, long bEnd, long bCount) throws IOException {
+        if (hunk != null && aLine - hunk.aLineEnd > 2 * contextLines && !flush()) {
+            return false;
+        }
+        if (hunk == null) {
+            long contextStart = aStart;
+            int context = 0;
+            for (; context < contextLines && contextStart > 0; context++) {
+                contextStart = a.lineStart(contextStart - 1);
+            }
+            hunk = new Hunk(aLine - context, bLine - context);
+            hunk.add(' ', a, contextStart, aStart, context);
+        } else {
+            hunk.add(' ', a, hunk.aPositionEnd, aStart, aLine - hunk.aLineEnd);
+        }
+        hunk.add('-', a, aStart, aEnd, aCount);
+        hunk.add('+', b, bStart, bEnd, bCount);
+        hunk.aLineEnd = aLine + aCount;
+        hunk.aPositionEnd = aEnd;
+        return true;
+    }
+
+    private boolean flush() throws IOException {
+        Hunk current = hunk;
+        hunk = null;
+        long contextEnd = current.aPositionEnd;
+        int context = 0;
+        for (; context < contextLines && contextEnd < a.size(); context++) {
+            contextEnd = a.lineEnd(contextEnd);
+        }
+        current.add(' ', a, current.aPositionEnd, contextEnd, context);
+        if (!headerWritten) {
+            headerWritten = true;
+            if (!out.line("--- " + aLabel) || !out.line("+++ " + bLabel)) {
+                return false;
+            }
+        }
+        if (!out.line("@@ -" + range(current.aStart, current.aCount) + " +" + range(current.bStart, current.bCount) + " @@")) {
+            return false;
+        }
+        for (Segment segment : current.segments) {
+            for (long position = segment.start; position < segment.end; ) {
+                long next = segment.text.lineEnd(position);
+                boolean terminated = segment.text.get(next - 1) == '\n';
+                if (!out.line(segment.marker + segment.text.text(position, terminated ? next - 1 : next))) {
+                    return false;
+                }
+                if (!terminated && !out.line(noNewline)) {
+                    return false;
+                }
+                position = next;
+            }
+        }
+        return true;
+    }
+
+    private static String range(long start, long count) {
+        long first = count > 0 ? start + 1 : start;
+        return count == 1 ? String.valueOf(first) : first + "," + count;
+    }
+
+    private boolean equal(int aLine, int bLine) {
+        return aLines.hashes[aLine] == bLines.hashes[bLine]
+                && a.regionEquals(aLines.start(aLine), aLines.start(aLine + 1), b, bLines.start(bLine), bLines.start(bLine + 1));
+    }
+
+    private void compare(int aStart, int aEnd, int bStart, int bEnd) {
+        while (aStart < aEnd && bStart < bEnd && equal(aStart, bStart)) {
+            aStart++;
+            bStart++;
+        }
+        while (aStart < aEnd && bStart < bEnd && equal(aEnd - 1, bEnd - 1)) {
+            aEnd--;
+            bEnd--;
+        }
+        int[] split = aStart == aEnd || bStart == bEnd ? null : middleSnake(aStart, aEnd, bStart, bEnd);
+        if (split == null) {
+            Arrays.fill(deleted, aStart, aEnd, true);
+            Arrays.fill(inserted, bStart, bEnd, true);
+            return;
+        }
+        compare(aStart, split[0], bStart, split[1]);
+        compare(split[0], aEnd, split[1], bEnd);
+    }
+
+    private int[] middleSnake(int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        int[] forward = new int[length];
+        int[] backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+        for (int d = 0; d < maxD; d++) {
+            if ((long) d * (n + m) > costLimit) {
+                return null;
+            }
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int index = offset + k;
+                int x = k == -d || (k != d && forward[index - 1] < forward[index + 1])
+                        ? forward[index + 1] : forward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && equal(aStart + x, bStart + y)) {
+                    x++;
+                    y++;
+                }
+                forward[index] = x;
+                if (x > n) {
+                    forwardEnd += 2;
+                } else if (y > m) {
+                    forwardStart += 2;
+                } else if (odd) {
+                    int other = offset + delta - k;
+                    if (other >= 0 && other < length && backward[other] != -1 && x >= n - backward[other]) {
+                        return new int[]{aStart + x, bStart + y};
+                    }
+                }
+            }
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int index = offset + k;
+                int x = k == -d || (k != d && backward[index - 1] < backward[index + 1])
+                        ? backward[index + 1] : backward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && equal(aEnd - x - 1, bEnd - y - 1)) {
+                    x++;
+                    y++;
+                }
+                backward[index] = x;
+                if (x > n) {
+                    backwardEnd += 2;
+                } else if (y > m) {
+                    backwardStart += 2;
+                } else if (!odd) {
+                    int other = offset + delta - k;
+                    if (other >= 0 && other < length && forward[other] != -1) {
+                        int forwardX = forward[other];
+                        int forwardY = offset + forwardX - other;
+                        if (forwardX >= n - x) {
+                            return new int[]{aStart + forwardX, bStart + forwardY};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<Block> blocks() {
+        List<Block> blocks = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < deleted.length || j < inserted.length) {
+            if ((i < deleted.length && deleted[i]) || (j < inserted.length && inserted[j])) {
+                int aStart = i;
+                int bStart = j;
+                while (i < deleted.length && deleted[i]) {
+                    i++;
+                }
+                while (j < inserted.length && inserted[j]) {
+                    j++;
+                }
+                blocks.add(new Block(aStart, i, bStart, j));
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return blocks;
+    }
+}
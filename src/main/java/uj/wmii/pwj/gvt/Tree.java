@@ -0,0 +1,327 @@
+package uj.wmii.pwj.gvt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+class Tree {
+
+    interface DiffVisitor {
+        void changed(String path, Manifest.Entry from, Manifest.Entry to) throws IOException;
+    }
+
+    interface ObjectVisitor {
+        void visit(String hash, String path) throws IOException;
+    }
+
+    private static String header = "gvt-tree";
+    private static String blobTag = "blob";
+    private static String treeTag = "tree";
+    private static String separator = "/";
+
+    private final ObjectStore store;
+    private String hash;
+    private boolean loaded;
+    private boolean mutable;
+    private SortedMap<String, Manifest.Entry> files = new TreeMap<>();
+    private SortedMap<String, Tree> directories = new TreeMap<>();
+
+    Tree(ObjectStore store) {
+        this.store = store;
+        this.loaded = true;
+        this.mutable = true;
+    }
+
+    private Tree(ObjectStore store, String hash) {
+        this.store = store;
+        this.hash = hash;
+    }
+
+    static Tree load(ObjectStore store, String hash) {
+        return new Tree(store, hash);
+    }
+
+    static Tree parse(ObjectStore store, byte[] content, String source) throws IOException {
+        Tree tree = new Tree(store, ObjectStore.hash(content));
+        tree.fill(content, source);
+        return tree;
+    }
+
+    String hash() {
+        return hash;
+    }
+
+    synchronized Tree copy() throws IOException {
+        ensureLoaded();
+        Tree copy = new Tree(store);
+        for (Tree child : directories.values()) {
+            child.freeze();
+        }
+        copy.files.putAll(files);
+        copy.directories.putAll(directories);
+        return copy;
+    }
+
+    boolean contains(String path) throws IOException {
+        return get(path) != null;
+    }
+
+    Manifest.Entry get(String path) throws IOException {
+        String[] parts = path.split(separator, -1);
+        Tree node = this;
+        for (int i = 0; i < parts.length - 1 && node != null; i++) {
+            node = node.directory(parts[i]);
+        }
+        return node == null ? null : node.file(parts[parts.length - 1]);
+    }
+
+    void put(String path, Manifest.Entry entry) throws IOException {
+        String[] parts = path.split(separator, -1);
+        Tree node = this;
+        node.modify();
+        for (int i = 0; i < parts.length - 1; i++) {
+            Tree child = node.directories.get(parts[i]);
+            child = child == null ? new Tree(store) : child.mutable ? child : child.copy();
+            child.modify();
+            node.directories.put(parts[i], child);
+            node = child;
+        }
+        node.files.put(parts[parts.length - 1], entry);
+    }
+
+    void remove(String path) throws IOException {
+        String[] parts = path.split(separator, -1);
+        if (!contains(path)) {
+            return;
+        }
+        Deque<Tree> trail = new ArrayDeque<>();
+        Tree node = this;
+        node.modify();
+        for (int i = 0; i < parts.length - 1; i++) {
+            Tree child = node.directories.get(parts[i]);
+            child = child.mutable ? child : child.copy();
+            child.modify();
+            node.directories.put(parts[i], child);
+            trail.push(node);
+            node = child;
+        }
+        node.files.remove(parts[parts.length - 1]);
+        for (int i = parts.length - 2; i >= 0 && node.isEmpty(); i--) {
+            node = trail.pop();
+            node.directories.remove(parts[i]);
+        }
+    }
+
+    Set<String> names() throws IOException {
+        Set<String> names = new TreeSet<>();
+        collectNames("", names);
+        return names;
+    }
+
+    synchronized String store() throws IOException {
+        if (hash != null) {
+            return hash;
+        }
+        for (Tree child : directories.values()) {
+            child.store();
+        }
+        hash = store.store(serialize());
+        mutable = false;
+        return hash;
+    }
+
+    synchronized byte[] serialize() throws IOException {
+        ensureLoaded();
+        StringBuilder content = new StringBuilder(header).append('\n');
+        for (Map.Entry<String, Tree> directory : directories.entrySet()) {
+            content.append(treeTag).append(' ').append(directory.getValue().store())
+                    .append(' ').append(directory.getKey()).append('\n');
+        }
+        for (Map.Entry<String, Manifest.Entry> file : files.entrySet()) {
+            Manifest.Entry entry = file.getValue();
+            content.append(blobTag).append(' ').append(entry.hash).append(' ').append(entry.size)
+                    .append(' ').append(entry.mtime).append(' ').append(file.getKey()).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    void collectObjects(Set<String> objects) throws IOException {
+        collectObjects(objects, (hash, path) -> {
+        });
+    }
+
+    void collectObjects(Set<String> objects, ObjectVisitor visitor) throws IOException {
+        collectObjects("", objects, visitor);
+    }
+
+    void collectContents(Map<String, Long> contents, Set<String> visited) throws IOException {
+        if (hash != null && !visited.add(hash)) {
+            return;
+        }
+        ensureLoaded();
+        for (Manifest.Entry entry : files.values()) {
+            contents.put(entry.hash, entry.size);
+        }
+        for (Tree child : directories.values()) {
+            child.collectContents(contents, visited);
+        }
+    }
+
+    long logicalSize(Map<String, Long> sizes) throws IOException {
+        Long known = hash != null ? sizes.get(hash) : null;
+        if (known != null) {
+            return known;
+        }
+        ensureLoaded();
+        long size = 0;
+        for (Manifest.Entry entry : files.values()) {
+            size += entry.size;
+        }
+        for (Tree child : directories.values()) {
+            size += child.logicalSize(sizes);
+        }
+        if (hash != null) {
+            sizes.put(hash, size);
+        }
+        return size;
+    }
+
+    static void diff(Tree from, Tree to, DiffVisitor visitor) throws IOException {
+        diff(from, to, "", visitor);
+    }
+
+    private static void diff(Tree from, Tree to, String prefix, DiffVisitor visitor) throws IOException {
+        if (from == to || (from != null && to != null && from.hash != null && from.hash.equals(to.hash))) {
+            return;
+        }
+        SortedMap<String, Manifest.Entry> fromFiles = from != null ? from.loadedFiles() : Collections.emptySortedMap();
+        SortedMap<String, Manifest.Entry> toFiles = to != null ? to.loadedFiles() : Collections.emptySortedMap();
+        for (Map.Entry<String, Manifest.Entry> file : fromFiles.entrySet()) {
+            Manifest.Entry target = toFiles.get(file.getKey());
+            if (target == null || !sameEntry(file.getValue(), target)) {
+                visitor.changed(prefix + file.getKey(), file.getValue(), target);
+            }
+        }
+        for (Map.Entry<String, Manifest.Entry> file : toFiles.entrySet()) {
+            if (!fromFiles.containsKey(file.getKey())) {
+                visitor.changed(prefix + file.getKey(), null, file.getValue());
+            }
+        }
+        SortedMap<String, Tree> fromDirectories = from != null ? from.loadedDirectories() : Collections.emptySortedMap();
+        SortedMap<String, Tree> toDirectories = to != null ? to.loadedDirectories() : Collections.emptySortedMap();
+        Set<String> names = new TreeSet<>(fromDirectories.keySet());
+        names.addAll(toDirectories.keySet());
+        for (String name : names) {
+            diff(fromDirectories.get(name), toDirectories.get(name), prefix + name + separator, visitor);
+        }
+    }
+
+    private static boolean sameEntry(Manifest.Entry a, Manifest.Entry b) {
+        return a.hash.equals(b.hash) && a.size == b.size && a.mtime == b.mtime;
+    }
+
+    private void collectObjects(String prefix, Set<String> objects, ObjectVisitor visitor) throws IOException {
+        if (hash != null) {
+            if (!objects.add(hash)) {
+                return;
+            }
+            visitor.visit(hash, prefix);
+        }
+        ensureLoaded();
+        for (Map.Entry<String, Manifest.Entry> file : files.entrySet()) {
+            if (objects.add(file.getValue().hash)) {
+                visitor.visit(file.getValue().hash, prefix + file.getKey());
+            }
+        }
+        for (Map.Entry<String, Tree> directory : directories.entrySet()) {
+            directory.getValue().collectObjects(prefix + directory.getKey() + separator, objects, visitor);
+        }
+    }
+
+    private void collectNames(String prefix, Set<String> names) throws IOException {
+        ensureLoaded();
+        for (Map.Entry<String, Tree> directory : directories.entrySet()) {
+            directory.getValue().collectNames(prefix + directory.getKey() + separator, names);
+        }
+        for (String name : files.keySet()) {
+            names.add(prefix + name);
+        }
+    }
+
+    private Tree directory(String name) throws IOException {
+        return loadedDirectories().get(name);
+    }
+
+    private Manifest.Entry file(String name) throws IOException {
+        return loadedFiles().get(name);
+    }
+
+    private synchronized SortedMap<String, Manifest.Entry> loadedFiles() throws IOException {
+        ensureLoaded();
+        return files;
+    }
+
+    private synchronized SortedMap<String, Tree> loadedDirectories() throws IOException {
+        ensureLoaded();
+        return directories;
+    }
+
+    private boolean isEmpty() {
+        return files.isEmpty() && directories.isEmpty();
+    }
+
+    private void modify() {
+        hash = null;
+    }
+
+    private synchronized void ensureLoaded() throws IOException {
+        if (!loaded) {
+            fill(store.read(hash), hash);
+        }
+    }
+
+    private void fill(byte[] content, String source) throws IOException {
+        String text = new String(content, StandardCharsets.UTF_8);
+        if (!text.startsWith(header + "\n")) {
+            String flatHash = hash;
+            Manifest manifest = Manifest.parse(content, source);
+            for (String name : manifest.names()) {
+                put(name, manifest.get(name));
+            }
+            hash = flatHash;
+            loaded = true;
+            mutable = true;
+            freeze();
+            return;
+        }
+        for (String line : text.substring(header.length() + 1).split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ", line.startsWith(treeTag + " ") ? 3 : 5);
+            try {
+                if (parts[0].equals(treeTag) && parts.length == 3) {
+                    directories.put(parts[2], new Tree(store, parts[1]));
+                } else if (parts[0].equals(blobTag) && parts.length == 5) {
+                    files.put(parts[4], new Manifest.Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                } else {
+                    throw new IOException("Corrupted tree " + source + ": " + line);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupted tree " + source + ": " + line, e);
+            }
+        }
+        loaded = true;
+        mutable = false;
+    }
+
+    private synchronized void freeze() {
+        if (!mutable) {
+            return;
+        }
+        mutable = false;
+        for (Tree child : directories.values()) {
+            child.freeze();
+        }
+    }
+}
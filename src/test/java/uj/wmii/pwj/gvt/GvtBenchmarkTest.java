@@ -0,0 +1,152 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+@Tag("benchmark")
+public class GvtBenchmarkTest {
+
+    private static final int COMMITS = 200;
+
+    private static class SilentExitHandler extends ExitHandler {
+        @Override
+        void exitOperation(int code) {
+        }
+    }
+
+    private PrintStream stdout;
+    private PrintStream stderr;
+
+    @BeforeEach
+    void silenceOutput() {
+        stdout = System.out;
+        stderr = System.err;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        System.setOut(stdout);
+        System.setErr(stderr);
+        SafeFiles.setFsyncEnabled(true);
+        deleteRepository();
+    }
+
+    private static void deleteRepository() throws IOException {
+        SafeFiles.deleteRecursively(Path.of(".gvt"));
+        Files.deleteIfExists(Path.of("bench.txt"));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Path.of("."), "bench-file-*")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void commitWithAndWithoutFsync() throws IOException {
+        long withoutFsync = commitNanos(false);
+        deleteRepository();
+        long withFsync = commitNanos(true);
+        stdout.printf("commit x%d: without fsync %.3f ms/op, with fsync %.3f ms/op%n",
+            COMMITS, withoutFsync / 1e6 / COMMITS, withFsync / 1e6 / COMMITS);
+    }
+
+    private long commitNanos(boolean fsync) throws IOException {
+        SafeFiles.setFsyncEnabled(fsync);
+        Gvt gvt = new Gvt(new SilentExitHandler());
+        gvt.mainInternal("init");
+        Files.writeString(Path.of("bench.txt"), "version 0");
+        gvt.mainInternal("add", "bench.txt");
+        long start = System.nanoTime();
+        for (int i = 1; i <= COMMITS; i++) {
+            Files.writeString(Path.of("bench.txt"), "version " + i);
+            gvt.mainInternal("commit", "bench.txt");
+        }
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void checkoutWithDifferentWorkerCounts() throws IOException {
+        int[][] shapes = {{200, 4 * 1024}, {2000, 4 * 1024}, {20, 1024 * 1024}};
+        int[] workerCounts = {1, 2, Runtime.getRuntime().availableProcessors()};
+        int defaultWorkers = ParallelIO.workers();
+        try {
+            for (int[] shape : shapes) {
+                Gvt gvt = repositoryWithFiles(shape[0], shape[1]);
+                for (int workers : workerCounts) {
+                    ParallelIO.setWorkers(workers);
+                    gvt.mainInternal("checkout", "0");
+                    long start = System.nanoTime();
+                    gvt.mainInternal("checkout", "1");
+                    long elapsed = System.nanoTime() - start;
+                    stdout.printf("checkout %d files x %d bytes, %d worker(s): %.1f ms%n",
+                        shape[0], shape[1], workers, elapsed / 1e6);
+                }
+                deleteRepository();
+            }
+        } finally {
+            ParallelIO.setWorkers(defaultWorkers);
+        }
+    }
+
+    @Test
+    public void compressionCodecs() throws IOException {
+        int count = 200;
+        for (String codec : new String[] {"none", "deflate-fast", "deflate", "deflate-best"}) {
+            Gvt gvt = new Gvt(new SilentExitHandler());
+            gvt.mainInternal("init", "-compression", codec);
+            StringBuilder ops = new StringBuilder();
+            long logical = 0;
+            for (int i = 0; i < count; i++) {
+                StringBuilder text = new StringBuilder();
+                for (int line = 0; line < 2000; line++) {
+                    text.append(i).append(';').append(line).append(";record ").append(line * 7919 % 1000).append('\n');
+                }
+                Files.writeString(Path.of("bench-file-" + i + ".dat"), text);
+                logical += text.length();
+                ops.append("add bench-file-").append(i).append(".dat\n");
+            }
+            Path opsFile = Path.of(".gvt", "bench-ops.txt");
+            Files.writeString(opsFile, ops);
+            long start = System.nanoTime();
+            gvt.mainInternal("batch", "-combined", opsFile.toString());
+            long storeNanos = System.nanoTime() - start;
+            gvt.mainInternal("checkout", "0");
+            start = System.nanoTime();
+            gvt.mainInternal("checkout", "1");
+            long checkoutNanos = System.nanoTime() - start;
+            long stored;
+            try (var paths = Files.walk(Path.of(".gvt", "objects"))) {
+                stored = paths.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+            }
+            stdout.printf("%-12s store %.1f MB/s, checkout %.1f MB/s, ratio %.2f%n", codec,
+                logical / 1e6 / (storeNanos / 1e9), logical / 1e6 / (checkoutNanos / 1e9), (double) logical / stored);
+            deleteRepository();
+        }
+    }
+
+    private Gvt repositoryWithFiles(int count, int size) throws IOException {
+        Gvt gvt = new Gvt(new SilentExitHandler());
+        gvt.mainInternal("init");
+        Random random = new Random(count);
+        StringBuilder ops = new StringBuilder();
+        byte[] content = new byte[size];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(content);
+            Files.write(Path.of("bench-file-" + i + ".dat"), content);
+            ops.append("add bench-file-").append(i).append(".dat\n");
+        }
+        Path opsFile = Path.of(".gvt", "bench-ops.txt");
+        Files.writeString(opsFile, ops);
+        gvt.mainInternal("batch", "-combined", opsFile.toString());
+        return gvt;
+    }
+}
@@ -7,7 +7,12 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
@@ -407,4 +412,453 @@ public class GvtTest {
         }
     }
 
+    @Test
+    @Order(38)
+    public void versionsStoreManifestsInsteadOfCopies() {
+        assertThat(Path.of(".gvt", "versions", "7", ".manifest")).exists();
+        assertThat(Path.of(".gvt", "versions", "7", "b.txt")).doesNotExist();
+        assertThat(Path.of(".gvt", "objects")).isDirectory();
+    }
+
+    @Test
+    @Order(39)
+    public void rebuildHistoryLog() {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("rebuild");
+        verify(eh, times(1)).exit(0, "History rebuilt successfully. Versions: 8");
+    }
+
+    @Test
+    @Order(40)
+    public void historyAfterRebuild() {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("history", "-last", "2");
+        verify(eh, times(1)).exit(0,
+            """
+            7: Again modified b.txt
+            6: File committed successfully. File: b.txt
+            """);
+    }
+
+    @Test
+    @Order(41)
+    public void forwardCommandsToDaemon() throws InterruptedException {
+        Path socket = Path.of(".gvt", "daemon.sock");
+        Thread daemon = new Thread(() -> new Gvt(eh).mainInternal("daemon"));
+        daemon.start();
+        for (int i = 0; i < 100 && !Files.exists(socket); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(GvtDaemon.forward(socket, eh, "version", "3")).isTrue();
+        verify(eh, times(1)).exitOperation(0);
+        assertThat(out.toString()).contains("Version: 3\nAdding C FILE");
+
+        assertThat(GvtDaemon.forward(socket, eh, "daemon", "stop")).isTrue();
+        daemon.join(5000);
+        assertThat(daemon.isAlive()).isFalse();
+        assertThat(socket).doesNotExist();
+    }
+
+    @Test
+    @Order(42)
+    public void batchCombinedIntoOneVersion() throws IOException {
+        Path ops = Files.createTempFile("gvt-batch", ".txt");
+        Files.writeString(ops, "detach c.txt\nadd c.txt\n");
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("batch", "-combined", ops.toString());
+        verify(eh, times(1)).exit(0, "File detached successfully. File: c.txt\nFile added successfully. File: c.txt");
+        safeDelete(ops);
+    }
+
+    @Test
+    @Order(43)
+    public void checkVersion8() {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("version");
+        verify(eh, times(1)).exit(0, "Version: 8\nBatch applied successfully. Changes: 2");
+    }
+
+    @Test
+    @Order(44)
+    public void concurrentWritersGetDistinctVersions() throws Exception {
+        int writers = 8;
+        int commits = 5;
+        AtomicInteger failures = new AtomicInteger();
+        ExitHandler counting = new ExitHandler() {
+            @Override
+            void exitOperation(int code) {
+                if (code != 0) {
+                    failures.incrementAndGet();
+                }
+            }
+        };
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            Path file = Path.of("stress" + w + ".txt");
+            Thread thread = new Thread(() -> {
+                try {
+                    Files.writeString(file, "0");
+                    new Gvt(counting).mainInternal("add", file.toString());
+                    for (int i = 1; i <= commits; i++) {
+                        Files.writeString(file, String.valueOf(i));
+                        new Gvt(counting).mainInternal("commit", file.toString());
+                        new Gvt(counting).mainInternal("history", "-last", "1");
+                    }
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        try {
+            assertThat(failures.get()).isZero();
+            assertThat(Files.readString(Path.of(".gvt", "latest")).trim())
+                .isEqualTo(String.valueOf(8 + writers * (commits + 1)));
+        } finally {
+            for (int w = 0; w < writers; w++) {
+                safeDelete(Path.of("stress" + w + ".txt"));
+            }
+        }
+    }
+
+    @Test
+    @Order(45)
+    public void statusReportsModifiedFiles() throws IOException {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("checkout", "8");
+        Files.writeString(Path.of("a.txt"), "Modified a.txt");
+        gvt.mainInternal("status");
+        verify(eh, times(1)).exit(0, "Version: 8\nmodified: a.txt");
+        assertThat(Path.of(".gvt", "index")).exists();
+    }
+
+    @Test
+    @Order(46)
+    public void commitSkipsUnchangedFile() {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("commit", "c.txt");
+        verify(eh, times(1)).exit(0, "File not changed, nothing to commit. File: c.txt");
+    }
+
+    @Test
+    @Order(47)
+    public void commitAllModifiedFiles() {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("commit", "-a", "-m", "Nightly commit");
+        verify(eh, times(1)).exit(0, "File committed successfully. File: a.txt");
+        gvt.mainInternal("version");
+        verify(eh, times(1)).exit(0, "Version: 57\nNightly commit");
+    }
+
+    @Test
+    @Order(49)
+    public void identicalChunksAreStoredOnce() throws IOException {
+        Path first = Path.of("chunked1.bin");
+        Path second = Path.of("chunked2.bin");
+        try {
+            byte[] content = new byte[2 * 1024 * 1024];
+            new Random(49).nextBytes(content);
+            Files.write(first, content);
+            content[content.length - 1]++;
+            Files.write(second, content);
+            long before = storedBytes();
+            Gvt gvt = new Gvt(eh);
+            gvt.mainInternal("add", "chunked1.bin");
+            gvt.mainInternal("add", "chunked2.bin");
+            verify(eh, times(1)).exit(0, "File added successfully. File: chunked2.bin");
+            assertThat(storedBytes() - before).isLessThan(content.length * 3L / 2);
+            gvt.mainInternal("stats");
+            assertThat(out.toString()).contains("Versions: 60\n").contains("Deduplication ratio: ");
+        } finally {
+            safeDelete(first, second);
+        }
+    }
+
+    @Test
+    @Order(50)
+    public void objectsAreCompressedWithConfiguredCodec() throws IOException {
+        assertThat(Files.readString(Path.of(".gvt", "config"))).contains("compression=deflate");
+        try (var paths = Files.walk(Path.of(".gvt", "objects"))) {
+            assertThat(paths.filter(p -> p.toString().endsWith(".z")).count()).isPositive();
+        }
+    }
+
+    @Test
+    @Order(51)
+    public void packedVersionsStayReadable() throws IOException {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("gc");
+        verify(eh, times(1)).exitOperation(0);
+        assertThat(Path.of(".gvt", "versions", "7")).doesNotExist();
+        assertThat(Path.of(".gvt", "objects", "pack")).isDirectory();
+        gvt.mainInternal("checkout", "7");
+        verify(eh, times(1)).exit(0, "Checkout successful for version: 7");
+        assertThat(Files.readString(Path.of("b.txt"))).isEqualTo("Ala ma kota\nPonownie!");
+        gvt.mainInternal("version", "3");
+        verify(eh, times(1)).exit(0, "Version: 3\nAdding C FILE");
+    }
+
+    @Test
+    @Order(52)
+    public void versionIndexIsRebuiltFromHistoryLog() throws IOException {
+        Path index = Path.of(".gvt", "versions.idx");
+        long indexSize = Files.size(index);
+        assertThat(indexSize % 64).isZero();
+        Files.delete(index);
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("version", "3");
+        verify(eh, times(1)).exit(0, "Version: 3\nAdding C FILE");
+        assertThat(Files.size(index)).isEqualTo(indexSize);
+    }
+
+    @Test
+    @Order(53)
+    public void repositoryApiReturnsResults() throws IOException {
+        Repository repository = Repository.open(Path.of(""));
+        assertThat(repository.version(3).message()).isEqualTo("Adding C FILE");
+        assertThat(repository.version(1000)).isNull();
+        List<Repository.Version> history = repository.history(2);
+        assertThat(history).hasSize(2);
+        assertThat(history.get(0).number()).isGreaterThan(history.get(1).number());
+        Repository.Result result = repository.add("missing.txt", null);
+        assertThat(result.code()).isEqualTo(21);
+        assertThat(result.message()).isEqualTo("File not found. File: missing.txt");
+        Repository.CheckoutResult checkout = repository.checkout(7);
+        assertThat(checkout.succeeded()).isTrue();
+        assertThat(repository.status().version()).isEqualTo(7);
+        verifyNoInteractions(eh);
+    }
+
+    @Test
+    @Order(54)
+    public void historyIsPaginatedAndFiltered() {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("history", "-from", "2", "-limit", "2");
+        verify(eh, times(1)).exit(0, "2: File added successfully. File: b.txt\n1: File added successfully. File: a.txt\n");
+        gvt.mainInternal("history", "-grep", "C FILE");
+        verify(eh, times(1)).exit(0, "3: Adding C FILE\n");
+        gvt.mainInternal("history", "-before", "2000-01-01");
+        verify(eh, times(1)).exit(0, "");
+    }
+
+    @Test
+    @Order(55)
+    public void nestedDirectoriesAreStoredAsSharedTrees() throws IOException {
+        Path nested = Path.of("nested", "sub", "x.txt");
+        Files.createDirectories(nested.getParent());
+        Files.writeString(nested, "nested");
+        Files.writeString(Path.of("peer.txt"), "peer");
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("add", "nested/sub/x.txt");
+        verify(eh, times(1)).exit(0, "File added successfully. File: nested/sub/x.txt");
+        int withNested = Repository.open(Path.of("")).version().number();
+        gvt.mainInternal("add", "peer.txt");
+        String first = Files.readString(Path.of(".gvt", "versions", String.valueOf(withNested), ".manifest"));
+        String second = Files.readString(Path.of(".gvt", "versions", String.valueOf(withNested + 1), ".manifest"));
+        assertThat(first).startsWith("gvt-tree\n").contains(" nested\n").doesNotContain("x.txt");
+        String nestedTree = first.lines().filter(line -> line.endsWith(" nested")).findFirst().orElseThrow();
+        assertThat(second).contains(nestedTree);
+        gvt.mainInternal("checkout", String.valueOf(withNested - 1));
+        assertThat(nested).doesNotExist();
+        assertThat(Path.of("peer.txt")).doesNotExist();
+        gvt.mainInternal("checkout", String.valueOf(withNested + 1));
+        assertThat(Files.readString(nested)).isEqualTo("nested");
+        gvt.mainInternal("detach", "nested/sub/x.txt");
+        gvt.mainInternal("detach", "peer.txt");
+        Files.delete(nested);
+        Files.delete(nested.getParent());
+        Files.delete(nested.getParent().getParent());
+        Files.delete(Path.of("peer.txt"));
+    }
+
+    @Test
+    @Order(56)
+    public void metricsAreAccumulatedWhenEnabled() throws IOException {
+        Path config = Path.of(".gvt", "config");
+        Path metrics = Path.of(".gvt", "metrics");
+        String original = Files.readString(config);
+        Files.writeString(config, original + "metrics=true\n");
+        try {
+            Gvt gvt = new Gvt(eh);
+            gvt.mainInternal("--stats", "version", "3");
+            verify(eh, times(1)).exit(0, "Version: 3\nAdding C FILE");
+            gvt.mainInternal("status");
+            Properties totals = new Properties();
+            try (Reader reader = Files.newBufferedReader(metrics)) {
+                totals.load(reader);
+            }
+            assertThat(totals.getProperty("commands")).isEqualTo("2");
+            assertThat(totals.getProperty("command.version")).isEqualTo("1");
+            assertThat(totals.getProperty("command.status")).isEqualTo("1");
+        } finally {
+            Files.writeString(config, original);
+            Files.deleteIfExists(metrics);
+        }
+    }
+
+    @Test
+    @Order(57)
+    public void diffShowsChangedLines() throws IOException {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("diff", "5", "7");
+        verify(eh, times(1)).exit(0, "--- a/b.txt\n+++ b/b.txt\n@@ -0,0 +1,2 @@\n+Ala ma kota\n+Ponownie!\n"
+                + "\\ No newline at end of file\n");
+        gvt.mainInternal("diff", "3", "x");
+        verify(eh, times(1)).exit(60, "Invalid version number: x");
+        Path a = Path.of("a.txt");
+        String original = Files.readString(a);
+        Files.writeString(a, "x\n");
+        try {
+            gvt.mainInternal("diff", "1");
+            verify(eh, times(1)).exit(0, "--- a/a.txt\n+++ b/a.txt\n@@ -0,0 +1 @@\n+x\n");
+        } finally {
+            Files.writeString(a, original);
+        }
+    }
+
+    @Test
+    @Order(58)
+    public void logListsVersionsThatChangedFile() throws IOException {
+        Path logged = Path.of("logged.txt");
+        Files.writeString(logged, "first");
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("add", "logged.txt");
+        int added = Repository.open(Path.of("")).version().number();
+        Files.writeString(logged, "second");
+        gvt.mainInternal("commit", "logged.txt", "-m", "Logged changed");
+        gvt.mainInternal("log", "logged.txt");
+        verify(eh, times(1)).exit(0, (added + 1) + ": Logged changed\n" + added + ": File added successfully. File: logged.txt\n");
+        gvt.mainInternal("log", "logged.txt", "-limit", "1");
+        verify(eh, times(1)).exit(0, (added + 1) + ": Logged changed\n");
+        gvt.mainInternal("log");
+        verify(eh, times(1)).exit(70, "Please specify file to log.");
+        gvt.mainInternal("detach", "logged.txt");
+        Files.delete(logged);
+    }
+
+    @Test
+    @Order(59)
+    public void fsckReportsBrokenPointers() throws IOException {
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("fsck");
+        verify(eh, times(1)).exit(eq(0), startsWith("Repository is consistent. Versions: "));
+        Path active = Path.of(".gvt", "active");
+        String original = Files.readString(active);
+        Files.writeString(active, "999");
+        try {
+            gvt.mainInternal("fsck");
+            verify(eh, times(1)).exit(eq(80), startsWith("Invalid active pointer: 999 is past latest version "));
+        } finally {
+            Files.writeString(active, original);
+        }
+    }
+
+    @Test
+    @Order(60)
+    public void checkoutRestoresUnchangedFilesFromWorkingTree() throws IOException {
+        Path deleted = Path.of("kept1.txt");
+        Path edited = Path.of("kept2.txt");
+        Path changed = Path.of("kept3.txt");
+        Files.writeString(deleted, "one");
+        Files.writeString(edited, "two");
+        Files.writeString(changed, "three");
+        Gvt gvt = new Gvt(eh);
+        gvt.mainInternal("add", "kept1.txt");
+        gvt.mainInternal("add", "kept2.txt");
+        gvt.mainInternal("add", "kept3.txt");
+        int base = Repository.open(Path.of("")).version().number();
+        Files.writeString(changed, "three again");
+        gvt.mainInternal("commit", "kept3.txt");
+        try {
+            Files.delete(deleted);
+            Files.writeString(edited, "local edit");
+            gvt.mainInternal("checkout", String.valueOf(base));
+            verify(eh, times(1)).exit(0, "Checkout successful for version: " + base);
+            assertThat(Files.readString(deleted)).isEqualTo("one");
+            assertThat(Files.readString(edited)).isEqualTo("two");
+            assertThat(Files.readString(changed)).isEqualTo("three");
+        } finally {
+            gvt.mainInternal("detach", "kept1.txt");
+            gvt.mainInternal("detach", "kept2.txt");
+            gvt.mainInternal("detach", "kept3.txt");
+            safeDelete(deleted, edited, changed);
+        }
+    }
+
+    @Test
+    @Order(61)
+    public void batchLinesAcceptQuotedArguments() throws IOException {
+        Path spaced = Path.of("quoted name.txt");
+        Files.writeString(spaced, "quoted");
+        Path ops = Files.createTempFile("gvt-batch", ".txt");
+        Files.writeString(ops, "add \"quoted name.txt\" -m \"Quoted  message\"\ndetach 'quoted name.txt'\n");
+        Gvt gvt = new Gvt(eh);
+        try {
+            gvt.mainInternal("batch", ops.toString());
+            verify(eh, times(1)).exit(0,
+                    "File added successfully. File: quoted name.txt\nFile detached successfully. File: quoted name.txt");
+            Repository repository = Repository.open(Path.of(""));
+            int latest = repository.version().number();
+            assertThat(repository.version(latest - 1).message()).isEqualTo("Quoted  message");
+        } finally {
+            safeDelete(spaced, ops);
+        }
+    }
+
+    @Test
+    @Order(62)
+    public void legacyVersionsWithNestedFilesAreMigrated() throws IOException {
+        Path root = Files.createTempDirectory("gvt-legacy");
+        try {
+            Path versions = root.resolve(".gvt").resolve("versions");
+            Files.createDirectories(versions.resolve("0"));
+            Files.createDirectories(versions.resolve("1").resolve("d"));
+            Files.writeString(root.resolve(".gvt").resolve("latest"), "1");
+            Files.writeString(root.resolve(".gvt").resolve("active"), "1");
+            Files.writeString(versions.resolve("0").resolve(".message"), "GVT initialized.");
+            Files.writeString(versions.resolve("1").resolve(".message"), "File added successfully. File: d/x.txt");
+            Files.writeString(versions.resolve("1").resolve("a.txt"), "top");
+            Files.writeString(versions.resolve("1").resolve("d").resolve("x.txt"), "nested");
+
+            Repository repository = Repository.open(root);
+            assertThat(repository.version().number()).isEqualTo(1);
+            assertThat(Files.readString(versions.resolve("1").resolve(".manifest"))).contains(" a.txt", " d/x.txt");
+            assertThat(versions.resolve("1").resolve("d")).doesNotExist();
+
+            assertThat(repository.checkout(1).succeeded()).isTrue();
+            assertThat(Files.readString(root.resolve("d").resolve("x.txt"))).isEqualTo("nested");
+            assertThat(Files.readString(root.resolve("a.txt"))).isEqualTo("top");
+        } finally {
+            SafeFiles.deleteRecursively(root);
+        }
+    }
+
+    @Test
+    @Order(63)
+    public void gcRefusesVersionDirectoriesWithUntrackedFiles() throws IOException {
+        int latest = Repository.open(Path.of("")).version().number();
+        Path stray = Path.of(".gvt", "versions", String.valueOf(latest), "d", "x.txt");
+        Files.createDirectories(stray.getParent());
+        Files.writeString(stray, "keep");
+        try {
+            Gvt gvt = new Gvt(eh);
+            gvt.mainInternal("gc");
+            verify(eh, times(1)).exit(90, "Version directory " + latest
+                    + " contains files that are not in its manifest. Garbage collection aborted.");
+            assertThat(stray).hasContent("keep");
+        } finally {
+            safeDelete(stray, stray.getParent());
+        }
+    }
+
+    private static long storedBytes() throws IOException {
+        try (var paths = Files.walk(Path.of(".gvt", "objects"))) {
+            return paths.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
 }
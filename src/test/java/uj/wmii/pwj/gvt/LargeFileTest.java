@@ -0,0 +1,47 @@
+package uj.wmii.pwj.gvt;
+
+import org.junit.jupiter.api.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@Tag("slow")
+public class LargeFileTest {
+
+    private Path root;
+
+    @BeforeEach
+    void createRepository() throws IOException {
+        root = Files.createTempDirectory("gvt-large");
+        Repository.init(root, Codecs.DEFAULT);
+    }
+
+    @AfterEach
+    void deleteRepository() throws IOException {
+        SafeFiles.deleteRecursively(root);
+    }
+
+    @Test
+    public void storeFileLargerThanHeap() throws IOException {
+        Path big = root.resolve("big.bin");
+        long size = Runtime.getRuntime().maxMemory() + 64L * 1024 * 1024;
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(big))) {
+            byte[] chunk = new byte[1024 * 1024];
+            for (long written = 0; written < size; written += chunk.length) {
+                chunk[(int) (written / chunk.length % chunk.length)]++;
+                output.write(chunk);
+            }
+        }
+        String expected = ObjectStore.hash(big);
+        Repository repository = Repository.open(root);
+        assertThat(repository.add("big.bin", null).message()).isEqualTo("File added successfully. File: big.bin");
+        Files.delete(big);
+        assertThat(repository.checkout(1).succeeded()).isTrue();
+        assertThat(ObjectStore.hash(big)).isEqualTo(expected);
+    }
+}